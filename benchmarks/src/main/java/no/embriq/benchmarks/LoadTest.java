@@ -0,0 +1,312 @@
+package no.embriq.benchmarks;
+
+import no.embriq.S3Wagon;
+import no.embriq.helpers.LocalS3Server;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.repository.Repository;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Many builds resolving their dependencies at the same time against one bucket, to size connection pools and find
+ * contention before it shows up in CI. Each session is a build on its own thread, with a wagon per repository as Maven
+ * looks them up, replaying a {@link Trace} over and over until the time is up. The sessions start at random points in
+ * the trace, as builds don't start in lockstep.
+ * <p>
+ * All sessions share the wagon's S3 client, and identical requests at the same time are coalesced, as for the threads
+ * of one build. Builds in separate JVMs would each have their own connection pool.
+ * <p>
+ * Options, all optional:
+ * <pre>
+ * --sessions N        concurrent builds (100)
+ * --duration S        seconds to measure (30)
+ * --warmup S          seconds before that which aren't measured (5)
+ * --trace FILE        the trace to replay, see {@link Trace}, instead of a synthetic one
+ * --artifacts N       dependencies of the synthetic build (150)
+ * --latency MS        added to every request by the stub (20)
+ * --bandwidth B       bytes per second per response, 0 for unlimited (0)
+ * --max-rate R        requests per second the stub answers before 503 SlowDown, 0 for unlimited (0)
+ * --server-threads N  threads of the stub (256)
+ * </pre>
+ * The wagon is configured as usual through system properties, e.g. {@code -Ds3.wagon.http.max.connections=200}, and
+ * {@code -Ds3.wagon.metrics.summary=true} adds the wagon's own metrics.
+ */
+public class LoadTest {
+
+    private static final String BUCKET = "artifacts";
+    private static final int MAX_ERRORS_SHOWN = 5;
+
+    private final Map<String, String> options;
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs, got " + Arrays.toString(args));
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        new LoadTest(options).run();
+        // the wagon's shared client and the stub leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private int option(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private void run() throws Exception {
+        int sessions = option("sessions", 100);
+        int duration = option("duration", 30);
+        int warmup = option("warmup", 5);
+        Trace trace = options.containsKey("trace") ? Trace.read(Paths.get(options.get("trace")))
+                                                   : Trace.synthetic(option("artifacts", 150), new Random(42));
+
+        try (LocalS3Server server = LocalS3Server.start(option("server-threads", 256))) {
+            server.createBucket(BUCKET);
+            trace.seed(server, BUCKET);
+            server.latency(option("latency", 20)).bandwidth(option("bandwidth", 0));
+            if (option("max-rate", 0) > 0) {
+                server.maxRequestRate(option("max-rate", 0));
+            }
+
+            System.setProperty("aws.region", LocalS3Server.REGION);
+            System.setProperty("aws.accessKeyId", LocalS3Server.ACCESS_KEY);
+            System.setProperty("aws.secretAccessKey", LocalS3Server.SECRET_KEY);
+            System.setProperty("s3.wagon.endpoint", server.endpoint().toString());
+
+            System.out.printf(Locale.ROOT, "%d sessions for %d s after %d s of warmup, %s%n", sessions, duration, warmup, trace.describe());
+            System.out.printf(Locale.ROOT, "Wagon properties: %s%n", wagonProperties());
+
+            long start = System.nanoTime();
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+            long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+
+            ExecutorService executor = Executors.newFixedThreadPool(sessions);
+            CountDownLatch started = new CountDownLatch(1);
+            List<Future<Session>> results = new ArrayList<>();
+            Random offsets = new Random(42);
+            for (int i = 0; i < sessions; i++) {
+                Session session = new Session(trace, offsets.nextInt(trace.steps.size()), measureFrom, measureUntil);
+                results.add(executor.submit(() -> {
+                    started.await();
+                    session.run();
+                    return session;
+                }));
+            }
+
+            started.countDown();
+            Results total = new Results();
+            for (Future<Session> result : results) {
+                total.add(result.get().results);
+            }
+            executor.shutdown();
+
+            report(total, duration, server);
+        }
+    }
+
+    private static Map<String, String> wagonProperties() {
+        Map<String, String> properties = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("s3.wagon.") && !name.equals("s3.wagon.endpoint")) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+        return properties;
+    }
+
+    private void report(Results total, int duration, LocalS3Server server) {
+        System.out.printf(Locale.ROOT, "%n%-15s %9s %9s %9s %7s %8s %8s %8s %9s %8s%n", "operation", "calls", "calls/s", "not found",
+                "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        Samples all = new Samples();
+        for (Trace.Operation operation : Trace.Operation.values()) {
+            Samples samples = total.samples.get(operation);
+            if (samples != null) {
+                print(operation.label, samples, duration);
+                all.add(samples);
+            }
+        }
+        print("total", all, duration);
+
+        System.out.printf(Locale.ROOT, "%nS3 requests, including warmup: %d GET, %d HEAD, %d LIST, %d throttled%n",
+                server.requestCount("GET"), server.requestCount("HEAD"), server.requestCount("LIST"), server.throttledCount());
+
+        errors.entrySet().stream()
+              .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+              .limit(MAX_ERRORS_SHOWN)
+              .forEach(error -> System.out.printf(Locale.ROOT, "%7d x %s%n", error.getValue().sum(), error.getKey()));
+    }
+
+    private static void print(String label, Samples samples, int duration) {
+        long[] latencies = samples.sorted();
+        System.out.printf(Locale.ROOT, "%-15s %9d %9.1f %9d %7d %8.1f %8.1f %8.1f %9.1f %8.1f%n", label, latencies.length,
+                latencies.length / (double) duration, samples.notFound, samples.errors, millis(latencies, 0.5),
+                millis(latencies, 0.9), millis(latencies, 0.99), millis(latencies, 0.999), millis(latencies, 1));
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(sorted.length * percentile) - 1));
+        return sorted[index] / 1e6;
+    }
+
+    /**
+     * One build, replaying the trace until the measurement ends.
+     */
+    private final class Session {
+
+        private final Trace trace;
+        private final int offset;
+        private final long measureFrom;
+        private final long measureUntil;
+        private final Results results = new Results();
+        // resource -> when it was last downloaded, which getIfNewer compares with like Maven does with the local file
+        private final Map<String, Long> downloaded = new HashMap<>();
+
+        Session(Trace trace, int offset, long measureFrom, long measureUntil) {
+            this.trace = trace;
+            this.offset = offset;
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+        }
+
+        void run() throws Exception {
+            Path directory = Files.createTempDirectory("load-test");
+            File destination = directory.resolve("download").toFile();
+            Map<String, S3Wagon> wagons = new HashMap<>();
+
+            try {
+                for (String repository : trace.repositories()) {
+                    S3Wagon wagon = new S3Wagon();
+                    wagon.connect(new Repository(repository, "s3://" + BUCKET + "/" + repository));
+                    wagons.put(repository, wagon);
+                }
+
+                for (long i = offset; ; i++) {
+                    Trace.Step step = trace.steps.get((int) (i % trace.steps.size()));
+                    long start = System.nanoTime();
+                    if (start >= measureUntil) {
+                        return;
+                    }
+
+                    Outcome outcome = execute(wagons.get(step.repository), step, destination);
+                    if (start >= measureFrom) {
+                        results.record(step.operation, outcome, System.nanoTime() - start);
+                    }
+                }
+            } finally {
+                for (S3Wagon wagon : wagons.values()) {
+                    wagon.disconnect();
+                }
+                Files.deleteIfExists(destination.toPath());
+                Files.deleteIfExists(directory);
+            }
+        }
+
+        private Outcome execute(S3Wagon wagon, Trace.Step step, File destination) {
+            String key = step.repository + "/" + step.resource;
+
+            try {
+                switch (step.operation) {
+                    case GET:
+                        wagon.get(step.resource, destination);
+                        downloaded.put(key, System.currentTimeMillis());
+                        return Outcome.FOUND;
+                    case GET_IF_NEWER:
+                        if (wagon.getIfNewer(step.resource, destination, downloaded.getOrDefault(key, 0L))) {
+                            downloaded.put(key, System.currentTimeMillis());
+                        }
+                        return Outcome.FOUND;
+                    default:
+                        return wagon.resourceExists(step.resource) ? Outcome.FOUND : Outcome.NOT_FOUND;
+                }
+            } catch (ResourceDoesNotExistException e) {
+                return Outcome.NOT_FOUND;
+            } catch (Exception e) {
+                Throwable cause = e;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                errors.computeIfAbsent(cause.getClass().getSimpleName() + ": " + cause.getMessage(), m -> new LongAdder()).increment();
+                return Outcome.FAILED;
+            }
+        }
+    }
+
+    private enum Outcome {
+        FOUND, NOT_FOUND, FAILED
+    }
+
+    private static final class Results {
+        private final Map<Trace.Operation, Samples> samples = new HashMap<>();
+
+        void record(Trace.Operation operation, Outcome outcome, long nanos) {
+            samples.computeIfAbsent(operation, o -> new Samples()).record(outcome, nanos);
+        }
+
+        void add(Results other) {
+            other.samples.forEach((operation, samples) -> this.samples.computeIfAbsent(operation, o -> new Samples()).add(samples));
+        }
+    }
+
+    /**
+     * The latencies of one session, kept whole so the percentiles over all sessions are exact.
+     */
+    private static final class Samples {
+        private long[] nanos = new long[1024];
+        private int count;
+        private long notFound;
+        private long errors;
+
+        void record(Outcome outcome, long latency) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latency;
+            notFound += outcome == Outcome.NOT_FOUND ? 1 : 0;
+            errors += outcome == Outcome.FAILED ? 1 : 0;
+        }
+
+        void add(Samples other) {
+            for (int i = 0; i < other.count; i++) {
+                record(Outcome.FOUND, other.nanos[i]);
+            }
+            notFound += other.notFound;
+            errors += other.errors;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
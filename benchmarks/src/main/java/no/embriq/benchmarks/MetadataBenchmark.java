@@ -0,0 +1,71 @@
+package no.embriq.benchmarks;
+
+import org.apache.maven.wagon.WagonException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The small requests dependency resolution is made of: existence checks, including the 404s of probing repositories
+ * that don't have an artifact, revalidating metadata that hasn't changed, and listings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+    private static final String POM = "foo/foo/1.0/foo-1.0.pom";
+    private static final String MISSING = "foo/foo/1.0/foo-1.0-sources.jar";
+    // later than the POM was stored, so it's never newer
+    private static final long CHECKED = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+
+    private File destination;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        destination = File.createTempFile("benchmark", ".pom");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(destination.toPath());
+    }
+
+    @Benchmark
+    public boolean resourceExists(WagonSession session) throws WagonException {
+        return session.wagon.resourceExists(POM);
+    }
+
+    @Benchmark
+    public boolean resourceMissing(WagonSession session) throws WagonException {
+        return session.wagon.resourceExists(MISSING);
+    }
+
+    @Benchmark
+    public boolean getIfNewer(WagonSession session) throws WagonException {
+        return session.wagon.getIfNewer(POM, destination, CHECKED);
+    }
+
+    @Benchmark
+    public List<String> getFileList(WagonSession session) throws WagonException {
+        return session.wagon.getFileList("listing");
+    }
+}
@@ -0,0 +1,56 @@
+package no.embriq.benchmarks;
+
+import no.embriq.helpers.LocalS3Server;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * The in-process S3 the benchmarks run against, with a bucket the wagons are configured for through the same system
+ * properties a build would use.
+ */
+@State(Scope.Benchmark)
+public class StubS3 {
+
+    static final String BUCKET = "benchmark";
+    static final String REPOSITORY = "s3://" + BUCKET + "/repository";
+    static final int LISTED_FILES = 100;
+
+    /**
+     * Added to every request, roughly the round-trip to S3 from the same region (0) or from outside AWS (20).
+     */
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    LocalS3Server server;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        // enough threads that the stub doesn't limit the concurrency of the benchmark
+        server = LocalS3Server.start(128);
+        server.createBucket(BUCKET);
+        server.latency(latencyMillis);
+
+        server.putObject(BUCKET, "repository/foo/foo/1.0/foo-1.0.pom", new byte[2048]);
+        for (int i = 0; i < LISTED_FILES; i++) {
+            server.putObject(BUCKET, "repository/listing/file-" + i + ".jar", new byte[16]);
+        }
+
+        System.setProperty("aws.region", LocalS3Server.REGION);
+        System.setProperty("aws.accessKeyId", LocalS3Server.ACCESS_KEY);
+        System.setProperty("aws.secretAccessKey", LocalS3Server.SECRET_KEY);
+        System.setProperty("s3.wagon.endpoint", server.endpoint().toString());
+        // the benchmarks measure the requests, not the cache in front of them
+        System.setProperty("s3.wagon.metadata.cache.ttl", "0");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.close();
+    }
+}
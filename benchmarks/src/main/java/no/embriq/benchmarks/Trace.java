@@ -0,0 +1,196 @@
+package no.embriq.benchmarks;
+
+import no.embriq.helpers.LocalS3Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The wagon calls of one build resolving its dependencies, in order.
+ * <p>
+ * A trace file has a step per line: the operation ({@code get}, {@code getIfNewer} or {@code resourceExists}), the
+ * repository, the resource and its size in bytes, or {@code -1} if the repository doesn't have it. Empty lines and
+ * lines starting with {@code #} are skipped, e.g.
+ * <pre>
+ * get        releases  org/foo/foo/1.0/foo-1.0.pom  2048
+ * get        releases  org/bar/bar/2.1/bar-2.1.pom  -1
+ * getIfNewer snapshots org/baz/baz/1.0-SNAPSHOT/maven-metadata.xml 800
+ * </pre>
+ */
+class Trace {
+
+    enum Operation {
+        GET("get"), GET_IF_NEWER("getIfNewer"), RESOURCE_EXISTS("resourceExists");
+
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        static Operation of(String label) {
+            for (Operation operation : values()) {
+                if (operation.label.equalsIgnoreCase(label)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation " + label);
+        }
+    }
+
+    static final class Step {
+        final Operation operation;
+        final String repository;
+        final String resource;
+        final int size;
+
+        Step(Operation operation, String repository, String resource, int size) {
+            this.operation = operation;
+            this.repository = repository;
+            this.resource = resource;
+            this.size = size;
+        }
+    }
+
+    final List<Step> steps;
+
+    private Trace(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    static Trace read(Path file) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        int line = 0;
+
+        for (String text : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line++;
+            text = text.trim();
+            if (text.isEmpty() || text.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = text.split("\\s+");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException(file + ":" + line + ": expected operation, repository, resource and size");
+            }
+            steps.add(new Step(Operation.of(fields[0]), fields[1], fields[2], Integer.parseInt(fields[3])));
+        }
+        return new Trace(steps);
+    }
+
+    /**
+     * A build with {@code artifacts} dependencies, looked up in a company repository for releases, one for snapshots
+     * and a mirror of Maven Central, in that order, like a typical settings.xml. Most dependencies are from the
+     * mirror, so resolving them first probes the other repositories for their POMs and gets 404s. Snapshots are
+     * resolved through their metadata, which is revalidated with {@code getIfNewer}. A few existence checks stand in
+     * for plugins that probe for optional artifacts.
+     */
+    static Trace synthetic(int artifacts, Random random) {
+        List<Step> steps = new ArrayList<>();
+        List<String> repositories = Arrays.asList("releases", "snapshots", "central");
+
+        for (int i = 0; i < artifacts; i++) {
+            String group = "org/example/group" + (i % 40);
+            String artifact = "artifact" + i;
+            double kind = random.nextDouble();
+
+            if (kind < 0.1) {
+                String version = "1." + (i % 5) + "-SNAPSHOT";
+                String directory = group + "/" + artifact + "/" + version + "/";
+                String timestamped = artifact + "-" + version.replace("SNAPSHOT", "20260101.120000-" + (1 + i % 9));
+                steps.add(new Step(Operation.GET_IF_NEWER, "snapshots", directory + "maven-metadata.xml", 800));
+                addArtifact(steps, "snapshots", directory + timestamped, jarSize(random));
+                continue;
+            }
+
+            String owner = kind < 0.3 ? "releases" : "central";
+            String version = (1 + i % 3) + "." + (i % 10) + "." + (i % 4);
+            String base = group + "/" + artifact + "/" + version + "/" + artifact + "-" + version;
+
+            for (String repository : repositories.subList(0, repositories.indexOf(owner))) {
+                steps.add(new Step(Operation.GET, repository, base + ".pom", -1));
+            }
+            addArtifact(steps, owner, base, jarSize(random));
+
+            if (random.nextDouble() < 0.05) {
+                steps.add(new Step(Operation.RESOURCE_EXISTS, owner, base + "-sources.jar", random.nextBoolean() ? -1 : jarSize(random)));
+            }
+        }
+        return new Trace(steps);
+    }
+
+    private static void addArtifact(List<Step> steps, String repository, String base, int jarSize) {
+        steps.add(new Step(Operation.GET, repository, base + ".pom", 2048 + base.length() * 16));
+        steps.add(new Step(Operation.GET, repository, base + ".pom.sha1", 40));
+        steps.add(new Step(Operation.GET, repository, base + ".jar", jarSize));
+        steps.add(new Step(Operation.GET, repository, base + ".jar.sha1", 40));
+    }
+
+    /**
+     * Mostly small jars, with the occasional big one.
+     */
+    private static int jarSize(Random random) {
+        double kind = random.nextDouble();
+        if (kind < 0.7) {
+            return 8 * 1024 + random.nextInt(120 * 1024);
+        }
+        if (kind < 0.97) {
+            return 128 * 1024 + random.nextInt(900 * 1024);
+        }
+        return 1024 * 1024 + random.nextInt(8 * 1024 * 1024);
+    }
+
+    Set<String> repositories() {
+        Set<String> repositories = new LinkedHashSet<>();
+        for (Step step : steps) {
+            repositories.add(step.repository);
+        }
+        return repositories;
+    }
+
+    /**
+     * Stores every resource the trace finds in the bucket, under a prefix per repository.
+     */
+    void seed(LocalS3Server server, String bucket) {
+        Map<String, Integer> objects = new LinkedHashMap<>();
+        for (Step step : steps) {
+            if (step.size >= 0) {
+                objects.put(step.repository + "/" + step.resource, step.size);
+            }
+        }
+
+        // objects of the same size can share their content, the stub doesn't change it
+        Map<Integer, byte[]> contents = new LinkedHashMap<>();
+        Random random = new Random(7);
+        for (Map.Entry<String, Integer> object : objects.entrySet()) {
+            byte[] content = contents.computeIfAbsent(object.getValue(), size -> {
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                return bytes;
+            });
+            server.putObject(bucket, object.getKey(), content);
+        }
+    }
+
+    long count(Operation operation) {
+        return steps.stream().filter(step -> step.operation == operation).count();
+    }
+
+    String describe() {
+        return String.format(Locale.ROOT, "%d steps per build in %s: %d get, %d getIfNewer, %d resourceExists, %d of them 404",
+                steps.size(), repositories(), count(Operation.GET), count(Operation.GET_IF_NEWER),
+                count(Operation.RESOURCE_EXISTS), steps.stream().filter(step -> step.size < 0).count());
+    }
+}
@@ -0,0 +1,86 @@
+package no.embriq.benchmarks;
+
+import org.apache.maven.wagon.WagonException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads and uploads of an artifact, from a small POM to a large jar.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    @Param({"1k", "1m", "16m"})
+    public String size;
+
+    private String resource;
+    private String upload;
+    private File source;
+    private File destination;
+
+    @Setup(Level.Trial)
+    public void setUp(StubS3 s3) throws IOException {
+        byte[] content = new byte[size(size)];
+        new Random(42).nextBytes(content);
+
+        resource = "artifacts/artifact-" + size + ".jar";
+        s3.server.putObject(StubS3.BUCKET, "repository/" + resource, content);
+        // each thread uploads to its own key, like the modules of a parallel deploy
+        upload = "uploads/" + Thread.currentThread().getId() + "/artifact-" + size + ".jar";
+
+        source = File.createTempFile("benchmark", ".jar");
+        Files.write(source.toPath(), content);
+        destination = File.createTempFile("benchmark", ".jar");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source.toPath());
+        Files.deleteIfExists(destination.toPath());
+    }
+
+    @Benchmark
+    public long get(WagonSession session) throws WagonException {
+        session.wagon.get(resource, destination);
+        return destination.length();
+    }
+
+    @Benchmark
+    public void put(WagonSession session) throws WagonException {
+        session.wagon.put(source, upload);
+    }
+
+    private static int size(String size) {
+        String lower = size.toLowerCase(Locale.ROOT);
+        if (lower.endsWith("k")) {
+            return Integer.parseInt(lower.substring(0, lower.length() - 1)) * 1024;
+        }
+        if (lower.endsWith("m")) {
+            return Integer.parseInt(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+        }
+        return Integer.parseInt(lower);
+    }
+}
@@ -0,0 +1,30 @@
+package no.embriq.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at 1, 8 and 32 threads, or at the thread count given with {@code -t}, and with the GC profiler,
+ * which reports the allocation rate. Otherwise takes the usual JMH options, e.g. a benchmark name pattern or
+ * {@code -p size=1m}.
+ */
+public class WagonBenchmarks {
+
+    private static final int[] THREADS = {1, 8, 32};
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        int[] threads = options.getThreads().hasValue() ? new int[]{options.getThreads().get()} : THREADS;
+
+        for (int count : threads) {
+            new Runner(new OptionsBuilder().parent(options)
+                                           .threads(count)
+                                           .addProfiler(GCProfiler.class)
+                                           .build()).run();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package no.embriq.benchmarks;
+
+import no.embriq.S3Wagon;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.authentication.AuthenticationException;
+import org.apache.maven.wagon.repository.Repository;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A wagon per benchmark thread, as Maven looks up a wagon per resolver thread. They share the S3 client, as in a build.
+ */
+@State(Scope.Thread)
+public class WagonSession {
+
+    S3Wagon wagon;
+
+    @Setup(Level.Trial)
+    public void connect(StubS3 s3) throws ConnectionException, AuthenticationException {
+        wagon = new S3Wagon();
+        wagon.connect(new Repository("benchmark", StubS3.REPOSITORY));
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws ConnectionException {
+        wagon.disconnect();
+    }
+}
@@ -0,0 +1,134 @@
+package no.embriq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests to a bucket once S3 starts throttling them, shared by all threads. Until the first throttled
+ * request it doesn't limit anything, unless a maximum rate is configured.
+ * <p>
+ * The rate follows AIMD, like TCP congestion control. A throttled request cuts it to a fraction of the rate requests
+ * were actually sent at, at most once per {@code DECREASE_INTERVAL} so a burst of throttled requests in flight counts
+ * as one signal. Each successful request raises it again, by {@code increase} requests per second for every second of
+ * requests at the current rate. Requests answered much slower than usual hold the increase back, because S3 tends to
+ * slow down before it starts throttling.
+ * <p>
+ * The permits are handed out as time slots, so requests leave evenly spaced instead of in bursts.
+ */
+class AdaptiveRateLimiter {
+
+    private static final double MIN_RATE = 0.5;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // latency above this multiple of the usual latency counts as congestion
+    private static final double LATENCY_FACTOR = 3;
+    private static final double LATENCY_WEIGHT = 0.05;
+
+    private final boolean adaptive;
+    private final double maxRate;
+    private final double increase;
+    private final double decrease;
+
+    // requests per second, infinite while not limited
+    private double rate;
+    private long nextSlotNanos;
+    private long lastDecreaseNanos;
+    private double usualLatencyNanos;
+    private long windowStartNanos = System.nanoTime();
+    private int windowRequests;
+    private double sentRate;
+
+    AdaptiveRateLimiter(boolean adaptive, double maxRate, double increase, double decrease) {
+        if (maxRate < 0 || increase <= 0 || decrease <= 0 || decrease >= 1) {
+            throw new IllegalArgumentException("Invalid rate limit: max rate " + maxRate + ", increase " + increase
+                    + ", decrease " + decrease);
+        }
+
+        this.adaptive = adaptive;
+        this.maxRate = maxRate;
+        this.increase = increase;
+        this.decrease = decrease;
+        this.rate = maxRate > 0 ? maxRate : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Waits for the next slot at the current rate.
+     */
+    void acquire() throws InterruptedException {
+        long waitNanos;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            countRequest(now);
+
+            if (Double.isInfinite(rate)) {
+                return;
+            }
+
+            long slot = Math.max(nextSlotNanos, now);
+            nextSlotNanos = slot + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            waitNanos = slot - now;
+        }
+
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    synchronized void throttled() {
+        long now = System.nanoTime();
+
+        if (!adaptive || (lastDecreaseNanos != 0 && now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS)) {
+            return;
+        }
+
+        lastDecreaseNanos = now;
+        rate = Math.max(MIN_RATE, Math.min(rate, sentRate(now)) * decrease);
+    }
+
+    /**
+     * @param latencyNanos how long the request took, or {@code -1} if that says nothing about S3, like for an upload
+     */
+    synchronized void succeeded(long latencyNanos) {
+        boolean congested = false;
+
+        if (latencyNanos >= 0) {
+            congested = usualLatencyNanos > 0 && latencyNanos > usualLatencyNanos * LATENCY_FACTOR;
+            usualLatencyNanos = usualLatencyNanos == 0 ? latencyNanos : usualLatencyNanos + LATENCY_WEIGHT * (latencyNanos - usualLatencyNanos);
+        }
+
+        if (!adaptive || Double.isInfinite(rate) || congested) {
+            return;
+        }
+
+        rate += increase / rate;
+        if (maxRate > 0) {
+            rate = Math.min(rate, maxRate);
+        }
+    }
+
+    synchronized double rate() {
+        return rate;
+    }
+
+    private void countRequest(long now) {
+        long elapsed = now - windowStartNanos;
+
+        if (elapsed >= WINDOW_NANOS) {
+            // after a pause the window says nothing about the rate requests are sent at
+            sentRate = elapsed < 2 * WINDOW_NANOS ? windowRequests * (double) TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+            windowStartNanos = now;
+            windowRequests = 0;
+        }
+        windowRequests++;
+    }
+
+    /**
+     * @return the requests per second sent lately, from the current window if there is no complete one yet
+     */
+    private double sentRate(long now) {
+        if (sentRate > 0) {
+            return sentRate;
+        }
+        return windowRequests * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(now - windowStartNanos, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+}
@@ -0,0 +1,183 @@
+package no.embriq;
+
+import org.reactivestreams.Subscriber;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.BlockingInputStreamAsyncRequestBody;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The blocking operations the wagon uses, on top of an {@link S3AsyncClient}. Each call blocks its thread as before,
+ * but the connections are served by the async client's event loop.
+ * <p>
+ * The async client must not retry by itself: request bodies are written from the calling thread, so it can't replay
+ * them, and a retried download goes to a new stream while the caller waits on the old one forever. Requests are retried
+ * by {@link RetryingS3Client} instead, uploads with a new stream from the body. A download that breaks once its stream
+ * was handed out fails that stream, so the wagon resumes it.
+ */
+class AsyncS3Client implements S3Client {
+
+    private final S3AsyncClient client;
+
+    AsyncS3Client(S3AsyncClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request, ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        ResponseInputStream<GetObjectResponse> in = call(() -> client.getObject(request, new BlockingInputStreamTransformer<>()));
+
+        try {
+            ReturnT result = transformer.transform(in.response(), AbortableInputStream.create(in, in::abort));
+            if (!transformer.needsConnectionLeftOpen()) {
+                in.close();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            in.abort();
+            throw e;
+        } catch (Exception e) {
+            in.abort();
+            throw SdkClientException.create("Could not read the response for " + request.key(), e);
+        }
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        return call(() -> client.headObject(request));
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        return call(() -> client.listObjectsV2(request));
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        PutObjectRequest withContentType = request.contentType() != null ? request
+                : request.toBuilder().contentType(body.contentType()).build();
+        return upload(body, asyncBody -> client.putObject(withContentType, asyncBody));
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        return call(() -> client.createMultipartUpload(request));
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+        return upload(body, asyncBody -> client.uploadPart(request, asyncBody));
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return call(() -> client.completeMultipartUpload(request));
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return call(() -> client.abortMultipartUpload(request));
+    }
+
+    private static <T> T call(Supplier<CompletableFuture<T>> request) {
+        return ConcurrentTransfers.await(request.get());
+    }
+
+    private static <T> T upload(RequestBody body, Function<AsyncRequestBody, CompletableFuture<T>> request) {
+        BlockingInputStreamAsyncRequestBody asyncBody = AsyncRequestBody.forBlockingInputStream(body.optionalContentLength().orElse(null));
+        CompletableFuture<T> response = request.apply(asyncBody);
+
+        try (InputStream in = body.contentStreamProvider().newStream()) {
+            asyncBody.writeInputStream(in);
+        } catch (IOException | RuntimeException e) {
+            if (response.isCompletedExceptionally()) {
+                // the request failed before or while the body was sent, which tells more than the broken stream
+                return ConcurrentTransfers.await(response);
+            }
+            response.cancel(true);
+            throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+        }
+
+        return ConcurrentTransfers.await(response);
+    }
+
+    /**
+     * {@link AsyncResponseTransformer#toBlockingInputStream()} completes as soon as the response starts, and a failure
+     * after that never reaches the stream, so its reader would wait for the rest of the body forever.
+     */
+    private static final class BlockingInputStreamTransformer<T extends SdkResponse> implements AsyncResponseTransformer<T, ResponseInputStream<T>> {
+
+        private final AsyncResponseTransformer<T, ResponseInputStream<T>> delegate = AsyncResponseTransformer.toBlockingInputStream();
+        private volatile Subscriber<? super ByteBuffer> subscriber;
+
+        @Override
+        public CompletableFuture<ResponseInputStream<T>> prepare() {
+            return delegate.prepare();
+        }
+
+        @Override
+        public void onResponse(T response) {
+            delegate.onResponse(response);
+        }
+
+        @Override
+        public void onStream(SdkPublisher<ByteBuffer> publisher) {
+            delegate.onStream(s -> {
+                subscriber = s;
+                publisher.subscribe(s);
+            });
+        }
+
+        @Override
+        public void exceptionOccurred(Throwable error) {
+            delegate.exceptionOccurred(error);
+
+            Subscriber<? super ByteBuffer> streaming = subscriber;
+            if (streaming != null) {
+                streaming.onError(error);
+            }
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,218 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.SdkSystemSetting;
+import software.amazon.awssdk.profiles.ProfileFileSystemSetting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+
+/**
+ * Keeps temporary credentials, like the ones STS issues for a web identity token, in a file until shortly before they
+ * expire, so the short Maven runs of a CI pipeline don't each make the STS round-trip. Credentials without an
+ * expiration, like access keys, are never written.
+ * <p>
+ * There is a file per identity the credentials are resolved for, i.e. per role, web identity token, profile and access
+ * key, so builds with different identities on the same host don't pick up each other's credentials. The token is
+ * identified by its contents, not just the path of its file: CI runners reuse the path for the tokens of different jobs
+ * and repositories. The files are only readable by their owner, and removed once the credentials in them have expired.
+ */
+class CachedCredentialsProvider implements AwsCredentialsProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedCredentialsProvider.class);
+
+    static final String ENABLED_PROPERTY = "s3.wagon.credentials.cache.enabled";
+    static final String PATH_PROPERTY = "s3.wagon.credentials.cache.path";
+
+    // credentials this close to their expiration are refreshed, as the SDK does itself
+    private static final Duration EXPIRY_MARGIN = Duration.ofMinutes(5);
+    // the longest STS issues credentials for, so older files only hold expired ones
+    private static final Duration MAX_SESSION = Duration.ofHours(12);
+
+    private final AwsCredentialsProvider delegate;
+    private final Path path;
+    private volatile AwsSessionCredentials cached;
+
+    CachedCredentialsProvider(AwsCredentialsProvider delegate, Path directory) {
+        this.delegate = delegate;
+        this.path = directory.resolve(identity());
+    }
+
+    /**
+     * @return the provider the clients use, {@code null} for the SDK's default
+     */
+    static AwsCredentialsProvider fromProperties() {
+        if (!WagonProperties.getBoolean(ENABLED_PROPERTY, false)) {
+            return null;
+        }
+
+        String path = WagonProperties.get(PATH_PROPERTY);
+        return new CachedCredentialsProvider(DefaultCredentialsProvider.create(),
+                path != null ? Paths.get(path) : Paths.get(System.getProperty("user.home"), ".m2", "s3-wagon", "auth"));
+    }
+
+    @Override
+    public AwsCredentials resolveCredentials() {
+        AwsSessionCredentials credentials = cached;
+        if (isFresh(credentials)) {
+            return credentials;
+        }
+
+        synchronized (this) {
+            credentials = cached;
+            if (isFresh(credentials)) {
+                return credentials;
+            }
+
+            credentials = read();
+            if (isFresh(credentials)) {
+                logger.debug("Using credentials from {}, expiring at {}", path, credentials.expirationTime().get());
+                cached = credentials;
+                return credentials;
+            }
+
+            AwsCredentials resolved = delegate.resolveCredentials();
+            if (resolved instanceof AwsSessionCredentials && isFresh((AwsSessionCredentials) resolved)) {
+                cached = (AwsSessionCredentials) resolved;
+                write(cached);
+            }
+            return resolved;
+        }
+    }
+
+    private static boolean isFresh(AwsSessionCredentials credentials) {
+        return credentials != null && credentials.expirationTime()
+                                                 .map(expiration -> Instant.now().plus(EXPIRY_MARGIN).isBefore(expiration))
+                                                 .orElse(false);
+    }
+
+    private AwsSessionCredentials read() {
+        Properties properties = new Properties();
+
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+            return AwsSessionCredentials.builder()
+                                        .accessKeyId(properties.getProperty("accessKeyId"))
+                                        .secretAccessKey(properties.getProperty("secretAccessKey"))
+                                        .sessionToken(properties.getProperty("sessionToken"))
+                                        .expirationTime(Instant.parse(properties.getProperty("expiration")))
+                                        .providerName("CachedCredentialsProvider")
+                                        .build();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // unreadable or partial, it's replaced with the next credentials
+            logger.debug("Ignoring cached credentials in {}: {}", path, e.toString());
+            return null;
+        }
+    }
+
+    private void write(AwsSessionCredentials credentials) {
+        Properties properties = new Properties();
+        properties.setProperty("accessKeyId", credentials.accessKeyId());
+        properties.setProperty("secretAccessKey", credentials.secretAccessKey());
+        properties.setProperty("sessionToken", credentials.sessionToken());
+        properties.setProperty("expiration", credentials.expirationTime().get().toString());
+
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            // temporary files are created readable by their owner only
+            Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+
+            try {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    properties.store(out, null);
+                }
+
+                try {
+                    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // the credentials work anyway, the next build just resolves its own
+            logger.warn("Could not cache credentials in {}: {}", path, e.toString());
+        }
+
+        deleteExpired();
+    }
+
+    /**
+     * Every new token gets a file of its own, so the files of tokens no longer used are removed here.
+     */
+    private void deleteExpired() {
+        Instant expired = Instant.now().minus(MAX_SESSION);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.toAbsolutePath().getParent())) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toInstant().isBefore(expired)) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (NoSuchFileException e) {
+                    // removed by another build
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Could not remove expired credentials from {}: {}", path.toAbsolutePath().getParent(), e.toString());
+        }
+    }
+
+    private static String identity() {
+        String tokenFile = SdkSystemSetting.AWS_WEB_IDENTITY_TOKEN_FILE.getStringValue().orElse("");
+        String identity = SdkSystemSetting.AWS_ROLE_ARN.getStringValue().orElse("") + "\n"
+                + tokenFile + "\n"
+                + token(tokenFile) + "\n"
+                + ProfileFileSystemSetting.AWS_PROFILE.getStringValue().orElse("") + "\n"
+                + SdkSystemSetting.AWS_ACCESS_KEY_ID.getStringValue().orElse("");
+
+        return ContentDigests.hex(sha256().digest(identity.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the SHA-256 of the web identity token, or an empty string if there is none
+     */
+    private static String token(String tokenFile) {
+        if (tokenFile.isEmpty()) {
+            return "";
+        }
+
+        try {
+            return ContentDigests.hex(sha256().digest(Files.readAllBytes(Paths.get(tokenFile))));
+        } catch (IOException | RuntimeException e) {
+            // the SDK will fail to read it too
+            logger.debug("Could not read the web identity token {}: {}", tokenFile, e.toString());
+            return "";
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance(ContentDigests.SHA256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package no.embriq;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Shared plumbing for transfers that move the parts of a file on several threads.
+ */
+final class ConcurrentTransfers {
+
+    private static final long RETRY_BACKOFF_MILLIS = 200;
+
+    private ConcurrentTransfers() {
+    }
+
+    /**
+     * Client side failures and server errors are worth another attempt; other 4xx responses will not go away by
+     * themselves.
+     */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) e;
+            int status = serviceException.statusCode();
+            return status >= 500 || status == 429 || serviceException.isThrottlingException();
+        }
+        return true;
+    }
+
+    /**
+     * S3 answers too high a request rate for a prefix with 503 SlowDown.
+     */
+    static boolean isThrottling(Exception e) {
+        if (e instanceof AwsServiceException) {
+            AwsServiceException serviceException = (AwsServiceException) e;
+            int status = serviceException.statusCode();
+            return status == 503 || status == 429 || serviceException.isThrottlingException();
+        }
+        return false;
+    }
+
+    static void backoff(int attempt) throws InterruptedException {
+        Thread.sleep(RETRY_BACKOFF_MILLIS << Math.min(attempt - 1, 6));
+    }
+
+    /**
+     * Waits for a part, unwrapping its failure so the wagon's usual SDK exception handling applies.
+     */
+    static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.create("Interrupted while waiting for transfer", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw SdkClientException.create("Transfer of part failed", cause);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Opens connections to a bucket before the first transfer needs them. Each probe is a HEAD request for a key that
+ * isn't expected to exist, sent all at the same time so that every one of them takes a new connection, and they pay the
+ * DNS lookup, TCP and TLS handshakes and credential resolution while the wagon connects. The answer, usually a 404 or a
+ * 403, doesn't matter, and neither does a failure: the transfers will just open their own connections.
+ * <p>
+ * The wagon is instantiated per lookup, so a client is only warmed up once per bucket.
+ */
+class ConnectionPrewarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPrewarmer.class);
+
+    static final String CONNECTIONS_PROPERTY = "s3.wagon.http.prewarm";
+
+    private static final String PROBE_KEY = ".s3-wagon-prewarm";
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("s3-wagon-prewarm");
+    // client -> buckets it has connections to, weak so that a closed client doesn't linger
+    private static final Map<S3Client, Set<String>> warmed = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final S3Client s3Client;
+    private final int connections;
+
+    ConnectionPrewarmer(S3Client s3Client, int connections) {
+        if (connections < 0) {
+            throw new IllegalArgumentException("Number of connections to prewarm must not be negative, was " + connections);
+        }
+
+        this.s3Client = s3Client;
+        this.connections = connections;
+    }
+
+    static ConnectionPrewarmer fromProperties(S3Client s3Client) {
+        return new ConnectionPrewarmer(s3Client, WagonProperties.getInt(CONNECTIONS_PROPERTY, 0));
+    }
+
+    boolean isEnabled() {
+        return connections > 0;
+    }
+
+    /**
+     * Opens the connections and waits for them, so the transfers that follow find them in the pool.
+     */
+    void prewarm(String bucket) {
+        if (!isEnabled() || !warmed.computeIfAbsent(s3Client, c -> Collections.synchronizedSet(new HashSet<>())).add(bucket)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(connections, threadFactory);
+        List<Future<?>> probes = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                probes.add(executor.submit(() -> probe(bucket)));
+            }
+            for (Future<?> probe : probes) {
+                ConcurrentTransfers.await(probe);
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Prewarming connections to {} failed: {}", bucket, e.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.debug("Prewarmed {} connections to {} in {} ms", connections, bucket, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void probe(String bucket) {
+        try {
+            s3Client.headObject(r -> r.bucket(bucket).key(PROBE_KEY));
+        } catch (SdkException e) {
+            // expected, the connection is what the request was for
+            logger.debug("Prewarm request to {} answered with {}", bucket, e.toString());
+        }
+    }
+}
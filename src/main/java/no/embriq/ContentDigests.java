@@ -0,0 +1,122 @@
+package no.embriq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+/**
+ * Several digests of the same content, computed in one pass. Fed with the bytes of a transfer as they go by, or with a
+ * file read once.
+ */
+final class ContentDigests implements TransferProgress {
+
+    static final String SHA1 = "SHA-1";
+    static final String MD5 = "MD5";
+    static final String SHA256 = "SHA-256";
+    static final String CRC32C = "CRC32C";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private final Checksum crc32c;
+    private Map<String, byte[]> values;
+
+    ContentDigests(Collection<String> algorithms) {
+        for (String algorithm : algorithms) {
+            if (!CRC32C.equals(algorithm)) {
+                digests.put(algorithm, messageDigest(algorithm));
+            }
+        }
+        crc32c = algorithms.contains(CRC32C) ? Crc32c.create() : null;
+    }
+
+    static ContentDigests of(Path file, Collection<String> algorithms) {
+        ContentDigests digests = new ContentDigests(algorithms);
+
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digests.transferred(buffer, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return digests;
+    }
+
+    @Override
+    public void transferred(byte[] buffer, int length) {
+        if (values != null) {
+            throw new IllegalStateException("The digests are already computed");
+        }
+
+        for (MessageDigest digest : digests.values()) {
+            digest.update(buffer, 0, length);
+        }
+        if (crc32c != null) {
+            crc32c.update(buffer, 0, length);
+        }
+    }
+
+    /**
+     * @return the digest as lower case hex, like in Maven's checksum files
+     */
+    String hex(String algorithm) {
+        byte[] value = values().get(algorithm);
+        if (value == null) {
+            throw new IllegalArgumentException(algorithm + " isn't computed");
+        }
+        return hex(value);
+    }
+
+    /**
+     * @return the digest encoded the way S3 expects it in its checksum headers
+     */
+    String base64(String algorithm) {
+        byte[] value = values().get(algorithm);
+        if (value == null) {
+            throw new IllegalArgumentException(algorithm + " isn't computed");
+        }
+        return Base64.getEncoder().encodeToString(value);
+    }
+
+    private Map<String, byte[]> values() {
+        if (values == null) {
+            values = new HashMap<>();
+            digests.forEach((algorithm, digest) -> values.put(algorithm, digest.digest()));
+
+            if (crc32c != null) {
+                long value = crc32c.getValue();
+                values.put(CRC32C, new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+            }
+        }
+        return values;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest messageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(algorithm + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package no.embriq;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), as used by S3's {@code x-amz-checksum-crc32c}. Java 9 and newer have it built in, and with CPU
+ * support, so that one is used when available. This table driven version is for Java 8.
+ */
+final class Crc32c implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82f63b78;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    static Checksum create() {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new Crc32c();
+        }
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int value = crc;
+        for (int i = off; i < off + len; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xff];
+        }
+        crc = value;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
@@ -0,0 +1,109 @@
+package no.embriq;
+
+import software.amazon.awssdk.core.exception.SdkException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Uploads the files of a directory tree on several threads. A site or a repository mirror is thousands of small files,
+ * so the time goes into round-trips, not bytes. Failed requests are retried by the {@link RetryingS3Client}, not here,
+ * so that throttling slows all the threads down together.
+ * <p>
+ * Once a file has failed for good, files not yet started are skipped, and the first failure is thrown with the others
+ * suppressed.
+ */
+class DirectoryUploader {
+
+    static final String CONCURRENCY_PROPERTY = "s3.wagon.directory.concurrency";
+
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("s3-wagon-directory");
+
+    private final int concurrency;
+
+    DirectoryUploader(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    static DirectoryUploader fromProperties() {
+        return new DirectoryUploader(WagonProperties.getInt(CONCURRENCY_PROPERTY, 16));
+    }
+
+    @FunctionalInterface
+    interface FileUpload {
+        /**
+         * @param relativePath the path of the file within the directory, with {@code /} as separator
+         */
+        void upload(Path file, String relativePath);
+    }
+
+    interface Listener {
+        void uploaded(Path file, String relativePath);
+
+        void failed(Path file, String relativePath, Exception e);
+    }
+
+    void upload(Path directory, FileUpload upload, Listener listener) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, threadFactory);
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String relativePath = relativePath(directory, file);
+                futures.add(executor.submit(() -> {
+                    if (failed.get()) {
+                        return;
+                    }
+                    try {
+                        upload.upload(file, relativePath);
+                    } catch (SdkException | UncheckedIOException e) {
+                        failed.set(true);
+                        listener.failed(file, relativePath, e);
+                        throw e;
+                    }
+                    listener.uploaded(file, relativePath);
+                }));
+            });
+
+            RuntimeException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    ConcurrentTransfers.await(future);
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String relativePath(Path directory, Path file) {
+        StringBuilder path = new StringBuilder();
+        for (Path element : directory.relativize(file)) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(element);
+        }
+        return path.toString();
+    }
+}
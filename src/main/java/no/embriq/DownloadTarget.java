@@ -0,0 +1,219 @@
+package no.embriq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A download in progress. The bytes are written to a temporary file next to the destination, which is renamed into
+ * place only when the download is complete. A failed or killed build can then never leave a truncated file at the
+ * destination, e.g. a half-written jar in the local repository.
+ * <p>
+ * A download that fails can be kept as a partial file named after the destination and the ETag of the object, so a
+ * later attempt can resume it. Claiming a partial file renames it to a temporary file first, which is atomic, so two
+ * builds sharing a local repository never resume the same partial file.
+ */
+class DownloadTarget implements Closeable {
+
+    private static final int MAX_BUFFER_SIZE = 256 * 1024;
+    private static final String TEMPORARY_SUFFIX = ".s3tmp";
+    private static final String PARTIAL_SUFFIX = ".s3part";
+
+    private final Path destination;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final String partialETag;
+    private String keepForETag;
+    private boolean committed;
+    private boolean closed;
+
+    private DownloadTarget(Path destination, Path temporary, FileChannel channel, String partialETag) {
+        this.destination = destination;
+        this.temporary = temporary;
+        this.channel = channel;
+        this.partialETag = partialETag;
+    }
+
+    /**
+     * The parent directory of {@code destination} must exist.
+     */
+    static DownloadTarget create(Path destination) throws IOException {
+        Path absolute = destination.toAbsolutePath();
+        Path temporary = createTemporary(absolute.getParent(), absolute.getFileName() + ".", TEMPORARY_SUFFIX);
+        return new DownloadTarget(absolute, temporary, FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE), null);
+    }
+
+    /**
+     * Takes over a partial file kept by an earlier, failed download of {@code destination}.
+     *
+     * @return the partial download, or {@code null} if there is none
+     */
+    static DownloadTarget claimPartial(Path destination) throws IOException {
+        Path absolute = destination.toAbsolutePath();
+        Path parent = absolute.getParent();
+        String prefix = absolute.getFileName() + ".";
+
+        if (!Files.isDirectory(parent)) {
+            return null;
+        }
+
+        List<Path> partials = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent, path -> {
+            String name = path.getFileName().toString();
+            return name.startsWith(prefix) && name.endsWith(PARTIAL_SUFFIX) && name.length() > prefix.length() + PARTIAL_SUFFIX.length();
+        })) {
+            stream.forEach(partials::add);
+        }
+
+        for (Path partial : partials) {
+            String name = partial.getFileName().toString();
+            String eTag = name.substring(prefix.length(), name.length() - PARTIAL_SUFFIX.length());
+            Path temporary = createTemporary(parent, prefix, TEMPORARY_SUFFIX);
+
+            try {
+                Files.move(partial, temporary, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException | AtomicMoveNotSupportedException e) {
+                // claimed by someone else in the meantime, or we can't claim it safely
+                Files.deleteIfExists(temporary);
+                continue;
+            }
+
+            return new DownloadTarget(absolute, temporary, FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                    "\"" + eTag + "\"");
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates a new, empty file with a unique name in {@code directory}. Unlike {@link Files#createTempFile} it gets the
+     * permissions the umask gives a new file, not only the owner's, which a rename into place would keep. A local
+     * repository or cache may be shared with other users or mounted into containers.
+     */
+    static Path createTemporary(Path directory, String prefix, String suffix) throws IOException {
+        while (true) {
+            String unique = Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36);
+            try {
+                return Files.createFile(directory.resolve(prefix + unique + suffix));
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+    }
+
+    /**
+     * Copies a complete file to {@code destination} the way a download would be, through a temporary file that is renamed
+     * into place.
+     */
+    static void copy(Path source, Path destination) throws IOException {
+        try (DownloadTarget target = create(destination)) {
+            target.channel.close();
+            Files.copy(source, target.temporary, StandardCopyOption.REPLACE_EXISTING);
+            target.commit();
+        }
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Number of bytes in the file so far. For a claimed partial file that is where the download resumes.
+     */
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * The ETag of the object the claimed partial file was downloaded from, or {@code null} for a fresh download.
+     */
+    String partialETag() {
+        return partialETag;
+    }
+
+    /**
+     * Keeps the bytes downloaded so far when the target is closed without being committed, so a later attempt can
+     * resume from them. Objects with an ETag that can't be part of a file name aren't kept.
+     */
+    void keepPartial(String eTag) {
+        String unquoted = eTag == null ? "" : eTag.replace("\"", "");
+        keepForETag = unquoted.matches("[A-Za-z0-9-]+") ? unquoted : null;
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code in} into the file at {@code position}. Uses positional writes only, so
+     * several threads may write different regions at the same time.
+     */
+    void write(InputStream in, long position, long length, TransferProgress progress) throws IOException {
+        byte[] buffer = new byte[(int) Math.max(1, Math.min(MAX_BUFFER_SIZE, length))];
+        long written = 0;
+
+        while (written < length) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+
+            if (n < 0) {
+                throw new IOException("Premature end of stream after " + written + " of " + length + " bytes at offset " + position);
+            }
+
+            ByteBuffer source = ByteBuffer.wrap(buffer, 0, n);
+            while (source.hasRemaining()) {
+                channel.write(source, position + written + source.position());
+            }
+
+            progress.transferred(buffer, n);
+            written += n;
+        }
+    }
+
+    /**
+     * Moves the completed file into place, replacing any previous file at the destination.
+     */
+    void commit() throws IOException {
+        channel.close();
+
+        try {
+            Files.move(temporary, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        committed = true;
+    }
+
+    /**
+     * Discards the temporary file, unless the download was committed or is kept as a partial download.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        channel.close();
+
+        if (committed) {
+            return;
+        }
+
+        if (keepForETag != null && Files.size(temporary) > 0) {
+            Path partial = destination.resolveSibling(destination.getFileName() + "." + keepForETag + PARTIAL_SUFFIX);
+            Files.move(temporary, partial, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package no.embriq;
+
+import software.amazon.awssdk.http.ContentStreamProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams a file, or a slice of it, to the SDK instead of loading it into memory, unless it was read into memory anyway.
+ * The SDK may ask for a new stream when it retries a request, so progress is only reported for bytes that have not been
+ * reported before. That way the listeners see every byte exactly once.
+ */
+class FileContentStreamProvider implements ContentStreamProvider, Closeable {
+
+    private final Path file;
+    private final byte[] content;
+    private final long offset;
+    private final long length;
+    private final TransferProgress progress;
+
+    private InputStream current;
+    private long reported;
+
+    FileContentStreamProvider(Path file, long offset, long length, TransferProgress progress) {
+        this.file = file;
+        this.content = null;
+        this.offset = offset;
+        this.length = length;
+        this.progress = progress;
+    }
+
+    /**
+     * @param content the whole file, already read
+     */
+    FileContentStreamProvider(byte[] content, TransferProgress progress) {
+        this.file = null;
+        this.content = content;
+        this.offset = 0;
+        this.length = content.length;
+        this.progress = progress;
+    }
+
+    long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized InputStream newStream() {
+        close();
+
+        if (content != null) {
+            current = new ProgressInputStream(new ByteArrayInputStream(content));
+            return current;
+        }
+
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            channel.position(offset);
+            current = new ProgressInputStream(Channels.newInputStream(channel));
+            return current;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // nothing sensible to do, we're done with it anyway
+            }
+            current = null;
+        }
+    }
+
+    private synchronized void report(long position, byte[] buffer, int offset, int length) {
+        long end = position + length;
+
+        if (end <= reported) {
+            return;
+        }
+
+        int skip = (int) Math.max(0, reported - position);
+        int from = offset + skip;
+        int count = length - skip;
+        reported = end;
+
+        if (from == 0) {
+            progress.transferred(buffer, count);
+        } else {
+            progress.transferred(Arrays.copyOfRange(buffer, from, from + count), count);
+        }
+    }
+
+    private class ProgressInputStream extends FilterInputStream {
+
+        private long position;
+
+        ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+
+            int b = super.read();
+
+            if (b >= 0) {
+                report(position, new byte[] {(byte) b}, 0, 1);
+                position++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+
+            int n = super.read(b, off, (int) Math.min(len, length - position));
+
+            if (n > 0) {
+                report(position, b, off, n);
+                position += n;
+            }
+
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), length - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
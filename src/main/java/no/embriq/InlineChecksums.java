@@ -0,0 +1,124 @@
+package no.embriq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the checksums of a file with the object itself. Uploads carry the SHA-1, MD5 and CRC32C of their content as
+ * user metadata, computed in one pass over the file, and a single-part upload also sends the CRC32C for S3 to verify.
+ * Downloads check their content against the metadata while it streams by.
+ * <p>
+ * Maven asks for the {@code .sha1} or {@code .md5} file right after the file itself, and those are answered from the
+ * metadata of that download instead of another round-trip. The checksum files are still uploaded, for clients that
+ * don't know about the metadata.
+ */
+class InlineChecksums {
+
+    static final String ENABLED_PROPERTY = "s3.wagon.checksums.inline";
+
+    // user metadata name -> digest algorithm
+    private static final Map<String, String> METADATA = new LinkedHashMap<>();
+    // checksum file extension -> user metadata name
+    private static final Map<String, String> EXTENSIONS = new LinkedHashMap<>();
+
+    static {
+        METADATA.put("sha1", ContentDigests.SHA1);
+        METADATA.put("md5", ContentDigests.MD5);
+        METADATA.put("crc32c", ContentDigests.CRC32C);
+
+        EXTENSIONS.put(".sha1", "sha1");
+        EXTENSIONS.put(".md5", "md5");
+    }
+
+    private final boolean enabled;
+
+    InlineChecksums(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    static InlineChecksums fromProperties() {
+        return new InlineChecksums(WagonProperties.getBoolean(ENABLED_PROPERTY, false));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    static Collection<String> algorithms() {
+        return METADATA.values();
+    }
+
+    /**
+     * @return the user metadata of an upload with the given digests
+     */
+    static Map<String, String> metadata(ContentDigests digests) {
+        Map<String, String> metadata = new HashMap<>();
+        METADATA.forEach((name, algorithm) -> metadata.put(name, digests.hex(algorithm)));
+        return metadata;
+    }
+
+    /**
+     * @return the checksums among the user metadata of an object, empty if it has none
+     */
+    static Map<String, String> checksums(Map<String, String> metadata) {
+        Map<String, String> checksums = new HashMap<>();
+        for (String name : METADATA.keySet()) {
+            String value = metadata.get(name);
+            if (value != null) {
+                checksums.put(name, value);
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * @return digests for verifying content against the checksums, or {@code null} if there are none
+     */
+    static ContentDigests digests(Map<String, String> checksums) {
+        if (checksums.isEmpty()) {
+            return null;
+        }
+
+        Collection<String> algorithms = new ArrayList<>();
+        checksums.keySet().forEach(name -> algorithms.add(METADATA.get(name)));
+        return new ContentDigests(algorithms);
+    }
+
+    static void verify(String key, Map<String, String> checksums, ContentDigests digests) throws IOException {
+        for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+            String actual = digests.hex(METADATA.get(checksum.getKey()));
+
+            if (!actual.equalsIgnoreCase(checksum.getValue().trim())) {
+                throw new IOException("Checksum mismatch for " + key + ": " + checksum.getKey() + " is " + actual
+                        + ", expected " + checksum.getValue());
+            }
+        }
+    }
+
+    static boolean isChecksumFile(String key) {
+        return checksumName(key) != null;
+    }
+
+    /**
+     * @return the name of the checksum a checksum file holds, or {@code null} if the key isn't a checksum file
+     */
+    static String checksumName(String key) {
+        for (Map.Entry<String, String> extension : EXTENSIONS.entrySet()) {
+            if (key.endsWith(extension.getKey())) {
+                return extension.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the key of the file a checksum file is the checksum of
+     */
+    static String checksummedKey(String key) {
+        return key.substring(0, key.lastIndexOf('.'));
+    }
+}
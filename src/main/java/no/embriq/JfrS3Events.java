@@ -0,0 +1,175 @@
+package no.embriq;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The {@link S3Events} of a JVM with Flight Recorder. Only loaded through reflection, see {@link S3Events#INSTANCE}.
+ */
+class JfrS3Events extends S3Events {
+
+    // whether an event type is enabled is the same for all its events, so these tell without allocating one
+    private static final S3Event GET = new S3Get();
+    private static final S3Event PUT = new S3Put();
+    private static final S3Event HEAD = new S3Head();
+    private static final S3Event LIST = new S3List();
+
+    @Override
+    Call begin(Type type, String bucket, String key) {
+        if (!prototype(type).isEnabled()) {
+            return Call.NONE;
+        }
+
+        S3Event event = create(type);
+        event.bucket = bucket;
+        event.key = key;
+        event.begin();
+        return new Recording(event);
+    }
+
+    private static S3Event prototype(Type type) {
+        switch (type) {
+            case GET:
+                return GET;
+            case PUT:
+                return PUT;
+            case HEAD:
+                return HEAD;
+            default:
+                return LIST;
+        }
+    }
+
+    private static S3Event create(Type type) {
+        switch (type) {
+            case GET:
+                return new S3Get();
+            case PUT:
+                return new S3Put();
+            case HEAD:
+                return new S3Head();
+            default:
+                return new S3List();
+        }
+    }
+
+    private static final class Recording extends Call {
+
+        private final S3Event event;
+        private long attemptStart;
+        private long responded;
+        private boolean streaming;
+        private boolean ended;
+
+        Recording(S3Event event) {
+            this.event = event;
+        }
+
+        @Override
+        void attempt() {
+            if (attemptStart != 0) {
+                event.retries++;
+            }
+            attemptStart = System.nanoTime();
+            streaming = false;
+        }
+
+        @Override
+        void responded(int status) {
+            responded = System.nanoTime();
+            event.status = status;
+            event.timeToFirstByte = responded - attemptStart;
+        }
+
+        @Override
+        void transferred(long bytes) {
+            event.bytes += bytes;
+        }
+
+        @Override
+        void streaming() {
+            streaming = true;
+        }
+
+        @Override
+        void succeeded(Object response) {
+            if (!streaming) {
+                super.succeeded(response);
+            }
+        }
+
+        @Override
+        void end() {
+            if (ended) {
+                return;
+            }
+
+            ended = true;
+            event.transferTime = responded == 0 ? 0 : System.nanoTime() - responded;
+            event.commit();
+        }
+
+        @Override
+        boolean isRecording() {
+            return true;
+        }
+    }
+
+    @Category({"Maven", "S3 Wagon"})
+    abstract static class S3Event extends Event {
+
+        @Label("Bucket")
+        String bucket;
+
+        @Label("Key")
+        @Description("The key, or prefix of a listing")
+        String key;
+
+        @Label("Bytes")
+        @Description("Bytes of the response body read, or of the request body for uploads")
+        @DataAmount
+        long bytes;
+
+        @Label("HTTP Status")
+        @Description("Status of the last attempt, 0 if it got no response")
+        int status;
+
+        @Label("Retries")
+        int retries;
+
+        @Label("Time to First Byte")
+        @Description("From the start of the last attempt to the response headers")
+        @Timespan
+        long timeToFirstByte;
+
+        @Label("Transfer Time")
+        @Description("From the response headers to the end of the response body")
+        @Timespan
+        long transferTime;
+    }
+
+    @Name("no.embriq.S3Get")
+    @Label("S3 GET")
+    static final class S3Get extends S3Event {
+    }
+
+    @Name("no.embriq.S3Put")
+    @Label("S3 PUT")
+    static final class S3Put extends S3Event {
+    }
+
+    @Name("no.embriq.S3Head")
+    @Label("S3 HEAD")
+    static final class S3Head extends S3Event {
+    }
+
+    @Name("no.embriq.S3List")
+    @Label("S3 List")
+    static final class S3List extends S3Event {
+    }
+}
@@ -0,0 +1,144 @@
+package no.embriq;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers what S3 said about a key for a while, both that it exists (with its size, last modified time, ETag and
+ * checksums) and that it doesn't. Maven asks every configured repository for every artifact, so most lookups in a
+ * build are repeats and most of them are misses.
+ * <p>
+ * The cache holds a bounded number of keys and evicts the least recently used one when full. Our own uploads invalidate
+ * the key they write.
+ */
+class MetadataCache {
+
+    static final String TTL_PROPERTY = "s3.wagon.metadata.cache.ttl";
+    static final String MAX_ENTRIES_PROPERTY = "s3.wagon.metadata.cache.size";
+
+    private static MetadataCache shared;
+
+    private final long ttlMillis;
+    private final Map<String, MetadataCache.Entry> entries;
+
+    MetadataCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, MetadataCache.Entry>(16, 0.75f, true) {
+            // Entry alone would be the Map.Entry this class inherits
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MetadataCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Wagons are instantiated per lookup, so they all share one cache.
+     */
+    static synchronized MetadataCache fromProperties() {
+        if (shared == null) {
+            shared = new MetadataCache(WagonProperties.getMillis(TTL_PROPERTY, 60_000),
+                    WagonProperties.getInt(MAX_ENTRIES_PROPERTY, 10_000));
+        }
+        return shared;
+    }
+
+    boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * @return what is known about the key, or {@code null} if nothing is, or it is no longer fresh
+     */
+    synchronized Entry get(String bucket, String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String cacheKey = cacheKey(bucket, key);
+        Entry entry = entries.get(cacheKey);
+
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(cacheKey);
+            return null;
+        }
+
+        return entry;
+    }
+
+    void putExisting(String bucket, String key, long contentLength, long lastModified, String eTag) {
+        putExisting(bucket, key, contentLength, lastModified, eTag, Collections.emptyMap());
+    }
+
+    /**
+     * @param checksums the checksums from the object's metadata, see {@link InlineChecksums}
+     */
+    void putExisting(String bucket, String key, long contentLength, long lastModified, String eTag, Map<String, String> checksums) {
+        put(bucket, key, new Entry(true, contentLength, lastModified, eTag, checksums, expiry()));
+    }
+
+    void putMissing(String bucket, String key) {
+        put(bucket, key, new Entry(false, -1, -1, null, Collections.emptyMap(), expiry()));
+    }
+
+    synchronized void invalidate(String bucket, String key) {
+        entries.remove(cacheKey(bucket, key));
+    }
+
+    private synchronized void put(String bucket, String key, Entry entry) {
+        if (isEnabled()) {
+            entries.put(cacheKey(bucket, key), entry);
+        }
+    }
+
+    private long expiry() {
+        return System.nanoTime() + ttlMillis * 1_000_000;
+    }
+
+    private static String cacheKey(String bucket, String key) {
+        return bucket + '/' + key;
+    }
+
+    static final class Entry {
+        private final boolean exists;
+        private final long contentLength;
+        private final long lastModified;
+        private final String eTag;
+        private final Map<String, String> checksums;
+        private final long expiresAt;
+
+        private Entry(boolean exists, long contentLength, long lastModified, String eTag, Map<String, String> checksums,
+                      long expiresAt) {
+            this.exists = exists;
+            this.contentLength = contentLength;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+            this.checksums = checksums;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean exists() {
+            return exists;
+        }
+
+        long contentLength() {
+            return contentLength;
+        }
+
+        long lastModified() {
+            return lastModified;
+        }
+
+        String eTag() {
+            return eTag;
+        }
+
+        /**
+         * @return the checksum with the given metadata name, or {@code null} if the object has none
+         */
+        String checksum(String name) {
+            return checksums.get(name);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last modified time and ETag of keys across builds, so {@link S3Wagon#getIfNewer} can answer "not newer"
+ * without a request for a while after a key was last checked, and revalidate with a conditional GET after that.
+ * <p>
+ * The store is a small binary file, by default in the local Maven directory. Maven looks up a wagon per transfer, so
+ * there is one store per file in the JVM, read once. Changes are merged into the file when a wagon disconnects at most
+ * every {@link #FLUSH_INTERVAL_MILLIS}, and when the JVM exits. Merging happens under a file lock and the file is
+ * replaced by an atomic rename, so parallel builds sharing the file neither block readers nor lose each other's updates.
+ */
+class MetadataStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataStore.class);
+
+    static final String ENABLED_PROPERTY = "s3.wagon.metadata.store.enabled";
+    static final String PATH_PROPERTY = "s3.wagon.metadata.store.path";
+    static final String FRESHNESS_PROPERTY = "s3.wagon.metadata.store.freshness";
+
+    private static final int MAGIC = 0x53334d44;
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 100_000;
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    static final long FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final Object flushLock = new Object();
+    private static final MetadataStore DISABLED = new MetadataStore(null, 0);
+    // path -> store
+    private static final Map<Path, MetadataStore> stores = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final long freshnessMillis;
+    private final Map<String, Entry> changes = new HashMap<>();
+    private Map<String, Entry> entries;
+    private long flushedAt;
+
+    MetadataStore(Path path, long freshnessMillis) {
+        this.path = path;
+        this.freshnessMillis = freshnessMillis;
+    }
+
+    static MetadataStore fromProperties() {
+        if (!WagonProperties.getBoolean(ENABLED_PROPERTY, false)) {
+            return DISABLED;
+        }
+
+        String path = WagonProperties.get(PATH_PROPERTY);
+        Path storePath = path != null ? Paths.get(path) : Paths.get(System.getProperty("user.home"), ".m2", "s3-wagon", "metadata");
+        long freshnessMillis = WagonProperties.getMillis(FRESHNESS_PROPERTY, TimeUnit.MINUTES.toMillis(5));
+
+        return stores.computeIfAbsent(storePath.toAbsolutePath().normalize(), p -> {
+            MetadataStore store = new MetadataStore(p, freshnessMillis);
+            Runtime.getRuntime().addShutdownHook(new Thread(store::flush, "s3-wagon-metadata-store"));
+            return store;
+        });
+    }
+
+    boolean isEnabled() {
+        return path != null;
+    }
+
+    /**
+     * @return the last known state of the key, or {@code null}
+     */
+    synchronized Entry get(String bucket, String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String storeKey = storeKey(bucket, key);
+        Entry entry = changes.containsKey(storeKey) ? changes.get(storeKey) : entries().get(storeKey);
+        return entry == null || entry.lastModified < 0 ? null : entry;
+    }
+
+    /**
+     * Records the state of the key as seen by S3 just now.
+     */
+    synchronized void record(String bucket, String key, long lastModified, String eTag) {
+        if (isEnabled()) {
+            changes.put(storeKey(bucket, key), new Entry(lastModified, System.currentTimeMillis(), eTag == null ? "" : eTag));
+        }
+    }
+
+    synchronized void invalidate(String bucket, String key) {
+        if (isEnabled()) {
+            changes.put(storeKey(bucket, key), new Entry(-1, System.currentTimeMillis(), ""));
+        }
+    }
+
+    /**
+     * Merges the changes into the file, unless it was done less than {@link #FLUSH_INTERVAL_MILLIS} ago.
+     */
+    void flushIfDue() {
+        synchronized (this) {
+            if (System.currentTimeMillis() - flushedAt < FLUSH_INTERVAL_MILLIS) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Merges the changes made since the last flush into the file.
+     */
+    void flush() {
+        Map<String, Entry> pending;
+
+        synchronized (this) {
+            if (!isEnabled() || changes.isEmpty()) {
+                return;
+            }
+            pending = new HashMap<>(changes);
+            changes.clear();
+            flushedAt = System.currentTimeMillis();
+        }
+
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Path lockFile = path.resolveSibling(path.getFileName() + ".lock");
+
+            // a FileLock is held per JVM, so threads in this JVM have to take turns themselves
+            synchronized (flushLock) {
+                try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     FileLock lock = channel.lock()) {
+                    assert lock.isValid();
+                    Map<String, Entry> merged = read(path);
+
+                    for (Map.Entry<String, Entry> change : pending.entrySet()) {
+                        Entry existing = merged.get(change.getKey());
+                        if (existing == null || existing.validatedAt <= change.getValue().validatedAt) {
+                            merged.put(change.getKey(), change.getValue());
+                        }
+                    }
+
+                    write(merged);
+
+                    synchronized (this) {
+                        entries = merged;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not update the metadata store {}: {}", path, e.toString());
+        }
+    }
+
+    boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.validatedAt < freshnessMillis;
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries == null) {
+            entries = read(path);
+        }
+        return entries;
+    }
+
+    private static Map<String, Entry> read(Path path) {
+        Map<String, Entry> entries = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.debug("Ignoring metadata store {} with unknown format", path);
+                return entries;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entries.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readUTF()));
+            }
+        } catch (NoSuchFileException e) {
+            return entries;
+        } catch (IOException e) {
+            logger.debug("Ignoring unreadable metadata store {}: {}", path, e.toString());
+            entries.clear();
+        }
+
+        return entries;
+    }
+
+    private void write(Map<String, Entry> merged) throws IOException {
+        long oldest = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        merged.values().removeIf(entry -> entry.lastModified < 0 || entry.validatedAt < oldest);
+
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<>(merged.entrySet());
+        if (sorted.size() > MAX_ENTRIES) {
+            sorted.sort(Comparator.comparingLong((Map.Entry<String, Entry> e) -> e.getValue().validatedAt).reversed());
+            sorted.subList(MAX_ENTRIES, sorted.size()).forEach(e -> merged.remove(e.getKey()));
+            sorted = sorted.subList(0, MAX_ENTRIES);
+        }
+
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+
+                for (Map.Entry<String, Entry> entry : sorted) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().lastModified);
+                    out.writeLong(entry.getValue().validatedAt);
+                    out.writeUTF(entry.getValue().eTag);
+                }
+            }
+
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String storeKey(String bucket, String key) {
+        return bucket + '/' + key;
+    }
+
+    static final class Entry {
+        private final long lastModified;
+        private final long validatedAt;
+        private final String eTag;
+
+        private Entry(long lastModified, long validatedAt, String eTag) {
+            this.lastModified = lastModified;
+            this.validatedAt = validatedAt;
+            this.eTag = eTag;
+        }
+
+        long lastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the ETag, or {@code null} if it isn't known
+         */
+        String eTag() {
+            return eTag.isEmpty() ? null : eTag;
+        }
+    }
+}
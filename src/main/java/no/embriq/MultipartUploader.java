@@ -0,0 +1,134 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a file as an S3 multipart upload, with the parts sent concurrently. A failed part is retried on its own, by
+ * the {@link RetryingS3Client} like any other request, and the upload is aborted if it can't be completed, so no
+ * orphaned parts are left behind in the bucket.
+ * <p>
+ * Progress is reported a part at a time, in file order, as the parts complete.
+ */
+class MultipartUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultipartUploader.class);
+
+    static final String THRESHOLD_PROPERTY = "s3.wagon.multipart.threshold";
+    static final String PART_SIZE_PROPERTY = "s3.wagon.multipart.part.size";
+    static final String CONCURRENCY_PROPERTY = "s3.wagon.multipart.concurrency";
+
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    static final int MAX_PARTS = 10_000;
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("s3-wagon-multipart");
+
+    private final S3Client s3Client;
+    private final long threshold;
+    private final long partSize;
+    private final int concurrency;
+
+    MultipartUploader(S3Client s3Client, long threshold, long partSize, int concurrency) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Multipart part size must be at least " + MIN_PART_SIZE + " bytes, was " + partSize);
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Multipart concurrency must be at least 1, was " + concurrency);
+        }
+
+        this.s3Client = s3Client;
+        this.threshold = threshold;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+    }
+
+    static MultipartUploader fromProperties(S3Client s3Client) {
+        return new MultipartUploader(s3Client,
+                WagonProperties.getSize(THRESHOLD_PROPERTY, 64L * 1024 * 1024),
+                WagonProperties.getSize(PART_SIZE_PROPERTY, 16L * 1024 * 1024),
+                WagonProperties.getInt(CONCURRENCY_PROPERTY, 4));
+    }
+
+    boolean shouldUpload(long contentLength) {
+        return threshold > 0 && contentLength >= threshold;
+    }
+
+    void upload(String bucket, String key, Path file, long contentLength, Map<String, String> metadata, TransferProgress progress) {
+        long effectivePartSize = Math.max(partSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) Math.max(1, (contentLength + effectivePartSize - 1) / effectivePartSize);
+
+        String uploadId = s3Client.createMultipartUpload(r -> r.bucket(bucket).key(key).contentType(CONTENT_TYPE)
+                                                                             .metadata(metadata)).uploadId();
+        logger.debug("Started multipart upload: key={} bucket={} uploadId={} parts={} partSize={}",
+                key, bucket, uploadId, partCount, effectivePartSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, partCount), threadFactory);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Future<CompletedPart>> futures = new ArrayList<>(partCount);
+
+            for (int i = 0; i < partCount; i++) {
+                int partNumber = i + 1;
+                long offset = i * effectivePartSize;
+                long length = Math.min(effectivePartSize, contentLength - offset);
+                futures.add(executor.submit(() -> uploadPart(bucket, key, uploadId, partNumber, file, offset, length)));
+            }
+
+            List<CompletedPart> parts = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                parts.add(ConcurrentTransfers.await(futures.get(i)));
+                long offset = i * effectivePartSize;
+                TransferProgress.replay(channel, offset, Math.min(effectivePartSize, contentLength - offset), progress);
+            }
+
+            s3Client.completeMultipartUpload(r -> r.bucket(bucket).key(key).uploadId(uploadId)
+                                                   .multipartUpload(m -> m.parts(parts)));
+        } catch (IOException e) {
+            executor.shutdownNow();
+            abort(bucket, key, uploadId);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            executor.shutdownNow();
+            abort(bucket, key, uploadId);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CompletedPart uploadPart(String bucket, String key, String uploadId, int partNumber, Path file, long offset,
+                                     long length) {
+        try (FileContentStreamProvider content = new FileContentStreamProvider(file, offset, length, TransferProgress.NONE)) {
+            UploadPartResponse response = s3Client.uploadPart(r -> r.bucket(bucket).key(key).uploadId(uploadId)
+                                                                    .partNumber(partNumber).contentLength(length),
+                    RequestBody.fromContentProvider(content, length, CONTENT_TYPE));
+            return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+        }
+    }
+
+    private void abort(String bucket, String key, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(r -> r.bucket(bucket).key(key).uploadId(uploadId));
+        } catch (SdkException e) {
+            logger.warn("Could not abort multipart upload {} of {}, incomplete parts may remain in {}", uploadId, key, bucket, e);
+        }
+    }
+}
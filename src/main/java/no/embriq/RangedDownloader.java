@@ -0,0 +1,162 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads large objects as concurrent ranged GETs written into place in the destination file.
+ * <p>
+ * The first request asks for the first {@code threshold} bytes. Smaller objects are returned whole by it, so they cost a
+ * single request as before. For larger objects the response reveals the total size, and the rest is fetched in parts on
+ * worker threads while the first chunk is streamed on the calling thread. Every part is pinned to the ETag of the first
+ * response, so the result is never stitched together from two versions of the object.
+ */
+class RangedDownloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(RangedDownloader.class);
+
+    static final String THRESHOLD_PROPERTY = "s3.wagon.download.parallel.threshold";
+    static final String PART_SIZE_PROPERTY = "s3.wagon.download.part.size";
+    static final String CONCURRENCY_PROPERTY = "s3.wagon.download.concurrency";
+    static final String PART_ATTEMPTS_PROPERTY = "s3.wagon.download.part.attempts";
+
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("s3-wagon-download");
+
+    private final S3Client s3Client;
+    private final long threshold;
+    private final long partSize;
+    private final int concurrency;
+    private final int partAttempts;
+
+    RangedDownloader(S3Client s3Client, long threshold, long partSize, int concurrency, int partAttempts) {
+        if (threshold > 0 && partSize < 1) {
+            throw new IllegalArgumentException("Download part size must be positive, was " + partSize);
+        }
+        if (concurrency < 1 || partAttempts < 1) {
+            throw new IllegalArgumentException("Download concurrency and part attempts must be at least 1");
+        }
+
+        this.s3Client = s3Client;
+        this.threshold = threshold;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.partAttempts = partAttempts;
+    }
+
+    static RangedDownloader fromProperties(S3Client s3Client) {
+        return new RangedDownloader(s3Client,
+                WagonProperties.getSize(THRESHOLD_PROPERTY, 0),
+                WagonProperties.getSize(PART_SIZE_PROPERTY, 8L * 1024 * 1024),
+                WagonProperties.getInt(CONCURRENCY_PROPERTY, 4),
+                WagonProperties.getInt(PART_ATTEMPTS_PROPERTY, 3));
+    }
+
+    boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * The range to ask for in the first GET.
+     */
+    String firstRange() {
+        return "bytes=0-" + (threshold - 1);
+    }
+
+    /**
+     * The size of the whole object, also when the response only holds a range of it.
+     */
+    static long objectSize(GetObjectResponse response) {
+        String contentRange = response.contentRange();
+
+        if (contentRange != null) {
+            String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+            if (!"*".equals(total)) {
+                return Long.parseLong(total);
+            }
+        }
+
+        return response.contentLength();
+    }
+
+    /**
+     * Whether the response holds only the first part of the object.
+     */
+    static boolean isPartial(GetObjectResponse response) {
+        return objectSize(response) > response.contentLength();
+    }
+
+    /**
+     * Writes the whole object into {@code channel}. Progress is reported in file order: the first chunk as it arrives,
+     * the following parts as each of them and all before it are done.
+     */
+    void download(String bucket, String key, ResponseInputStream<GetObjectResponse> first, DownloadTarget target,
+                  TransferProgress progress) throws IOException {
+        GetObjectResponse response = first.response();
+        long size = objectSize(response);
+        long firstLength = response.contentLength();
+        String eTag = response.eTag();
+
+        int partCount = (int) ((size - firstLength + partSize - 1) / partSize);
+        logger.debug("Ranged download: key={} bucket={} size={} parts={} eTag={}", key, bucket, size, partCount, eTag);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, partCount), threadFactory);
+
+        try {
+            List<Future<Void>> futures = new ArrayList<>(partCount);
+
+            for (int i = 0; i < partCount; i++) {
+                long offset = firstLength + i * partSize;
+                long length = Math.min(partSize, size - offset);
+                futures.add(executor.submit(() -> downloadPart(bucket, key, eTag, offset, length, target)));
+            }
+
+            target.write(first, 0, firstLength, progress);
+
+            for (int i = 0; i < partCount; i++) {
+                ConcurrentTransfers.await(futures.get(i));
+                long offset = firstLength + i * partSize;
+                TransferProgress.replay(target.channel(), offset, Math.min(partSize, size - offset), progress);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Failed requests are retried by the {@link RetryingS3Client}. What it can't retry is a response that breaks off
+     * after it returned, so those are retried here, with a new request that waits for the rate limit like any other.
+     */
+    private Void downloadPart(String bucket, String key, String eTag, long offset, long length, DownloadTarget target)
+            throws IOException {
+        String range = "bytes=" + offset + "-" + (offset + length - 1);
+
+        for (int attempt = 1; ; attempt++) {
+            ResponseInputStream<GetObjectResponse> part = s3Client.getObject(r -> r.bucket(bucket).key(key).range(range).ifMatch(eTag));
+            try {
+                target.write(part, offset, length, TransferProgress.NONE);
+                part.close();
+                return null;
+            } catch (IOException e) {
+                ResumableDownloader.abort(part);
+                if (attempt >= partAttempts || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+
+                logger.debug("Retrying range {} of {} after attempt {} failed: {}", range, key, attempt, e.toString());
+            } catch (RuntimeException e) {
+                ResumableDownloader.abort(part);
+                throw e;
+            }
+        }
+    }
+}
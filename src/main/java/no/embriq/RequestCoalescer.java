@@ -0,0 +1,144 @@
+package no.embriq;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets threads asking for the same key at the same time share one request. The first thread to join a key becomes the
+ * leader and makes the request; threads joining while it runs wait for its result instead of making their own. This
+ * matters in parallel builds, where many modules resolve the same artifacts at once.
+ * <p>
+ * A leader that fails closes the flight without a result, and every follower then makes its own request. That keeps
+ * errors, like a failed authorization, reported by the thread that ran into them.
+ */
+class RequestCoalescer {
+
+    private final Map<String, Request<?>> requests = new ConcurrentHashMap<>();
+
+    /**
+     * Joins the request for {@code key}, starting it if there is none. The returned flight must be closed.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Flight<T> join(String key) {
+        boolean[] leader = new boolean[1];
+
+        Request<T> request = (Request<T>) requests.compute(key, (k, existing) -> {
+            Request<?> joined = existing;
+            if (joined == null) {
+                joined = new Request<>(k);
+                leader[0] = true;
+            }
+            synchronized (joined) {
+                joined.participants++;
+            }
+            return joined;
+        });
+
+        return new Flight<>(request, leader[0]);
+    }
+
+    /**
+     * One thread's part in a request.
+     */
+    final class Flight<T> implements AutoCloseable {
+        private final Request<T> request;
+        private final boolean leader;
+        private boolean closed;
+
+        private Flight(Request<T> request, boolean leader) {
+            this.request = request;
+            this.leader = leader;
+        }
+
+        boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Hands the result of the leader's request to the followers.
+         */
+        void complete(T result) {
+            if (!leader) {
+                throw new IllegalStateException("Only the leader completes a request");
+            }
+            finish(result);
+        }
+
+        /**
+         * Waits for the leader.
+         *
+         * @return the result of the leader, or {@code null} if it failed
+         */
+        T await() throws InterruptedException {
+            if (leader) {
+                throw new IllegalStateException("The leader doesn't wait for itself");
+            }
+
+            synchronized (request) {
+                while (!request.done) {
+                    request.wait();
+                }
+                return request.result;
+            }
+        }
+
+        /**
+         * A follower is done with the result. The leader fails the request unless it completed it, and waits for the
+         * followers to be done with the result, which may be a file the leader is about to hand over to its caller.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (leader) {
+                finish(null);
+            }
+
+            boolean interrupted = false;
+
+            synchronized (request) {
+                request.participants--;
+                request.notifyAll();
+
+                while (leader && request.participants > 0) {
+                    try {
+                        request.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void finish(T result) {
+            // no one can join once the request is removed, so the number of participants is final
+            requests.remove(request.key, request);
+
+            synchronized (request) {
+                if (!request.done) {
+                    request.result = result;
+                    request.done = true;
+                    request.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static final class Request<T> {
+        private final String key;
+        private int participants;
+        private boolean done;
+        private T result;
+
+        private Request(String key) {
+            this.key = key;
+        }
+    }
+}
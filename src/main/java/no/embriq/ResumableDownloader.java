@@ -0,0 +1,143 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Streams an object into a {@link DownloadTarget}, resuming with a ranged GET from the last byte written when the
+ * connection fails, instead of starting over. Every resumed request carries {@code If-Match} with the object's ETag, so a
+ * file is never stitched together from two versions of the object.
+ * <p>
+ * When the attempts run out, the bytes downloaded so far can be kept, and the next download of the same resource
+ * resumes from them. That is off by default: nothing but such a download removes a kept file again, so a resource that
+ * isn't downloaded again leaves it behind in the local repository.
+ */
+class ResumableDownloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResumableDownloader.class);
+
+    static final String ATTEMPTS_PROPERTY = "s3.wagon.download.resume.attempts";
+    static final String KEEP_PARTIAL_PROPERTY = "s3.wagon.download.keep.partial";
+
+    private static final int PRECONDITION_FAILED = 412;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private final S3Client s3Client;
+    private final int attempts;
+    private final boolean keepPartial;
+
+    ResumableDownloader(S3Client s3Client, int attempts, boolean keepPartial) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("Download attempts must be at least 1");
+        }
+
+        this.s3Client = s3Client;
+        this.attempts = attempts;
+        this.keepPartial = keepPartial;
+    }
+
+    static ResumableDownloader fromProperties(S3Client s3Client) {
+        return new ResumableDownloader(s3Client,
+                WagonProperties.getInt(ATTEMPTS_PROPERTY, 3),
+                WagonProperties.getBoolean(KEEP_PARTIAL_PROPERTY, false));
+    }
+
+    /**
+     * @return a partial download of {@code destination} kept by an earlier attempt, or {@code null}
+     */
+    DownloadTarget claimPartial(Path destination) {
+        if (!keepPartial) {
+            return null;
+        }
+
+        try {
+            return DownloadTarget.claimPartial(destination);
+        } catch (IOException e) {
+            logger.debug("Could not look for a partial download of {}: {}", destination, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Asks for the rest of the object a partial download was made from.
+     *
+     * @return the rest of the object, or {@code null} if the object has changed since and must be downloaded from scratch
+     */
+    ResponseInputStream<GetObjectResponse> resume(String bucket, String key, DownloadTarget partial) throws IOException {
+        long position = partial.size();
+
+        try {
+            ResponseInputStream<GetObjectResponse> response = s3Client.getObject(r -> r.bucket(bucket).key(key)
+                                                                                      .range("bytes=" + position + "-")
+                                                                                      .ifMatch(partial.partialETag()));
+            logger.debug("Resuming partial download of {} from byte {}", key, position);
+            return response;
+        } catch (AwsServiceException e) {
+            if (e.statusCode() == PRECONDITION_FAILED || e.statusCode() == RANGE_NOT_SATISFIABLE) {
+                logger.debug("Discarding partial download of {}, the object has changed", key);
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the object, from the current size of {@code target} and on, reconnecting when the transfer fails.
+     */
+    void download(String bucket, String key, ResponseInputStream<GetObjectResponse> response, DownloadTarget target,
+                  TransferProgress progress) throws IOException {
+        String eTag = response.response().eTag();
+        long size = RangedDownloader.objectSize(response.response());
+        ResponseInputStream<GetObjectResponse> in = response;
+
+        for (int attempt = 1; ; attempt++) {
+            long position = target.size();
+
+            try {
+                if (in == null) {
+                    in = s3Client.getObject(r -> r.bucket(bucket).key(key).range("bytes=" + position + "-").ifMatch(eTag));
+                }
+
+                target.write(in, position, size - position, progress);
+
+                if (in != response) {
+                    in.close();
+                }
+                return;
+            } catch (IOException | SdkClientException e) {
+                abort(in);
+                in = null;
+
+                if (attempt >= attempts) {
+                    if (keepPartial) {
+                        target.keepPartial(eTag);
+                    }
+                    throw e;
+                }
+
+                logger.info("Download of {} failed at byte {} of {}, resuming: {}", key, target.size(), size, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Closing a response normally reads the rest of its body, so broken or abandoned responses are aborted instead.
+     */
+    static void abort(ResponseInputStream<?> in) {
+        if (in != null) {
+            try {
+                in.abort();
+            } catch (RuntimeException ignored) {
+                // the connection is broken already
+            }
+        }
+    }
+}
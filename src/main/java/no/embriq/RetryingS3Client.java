@@ -0,0 +1,205 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Retries the requests of the wagon, with an {@link AdaptiveRateLimiter} per bucket in front of them. The SDK clients
+ * underneath don't retry by themselves, as their retries would go around the rate limit and turn throttling into a
+ * retry storm.
+ * <p>
+ * Throttled requests are retried more often than other failures, after a random part of an exponential backoff so the
+ * threads waiting for them don't come back all at once. The client is shared by all wagons for the endpoint, so the
+ * rate limit is shared by all the threads of the build.
+ * <p>
+ * Uploads are retried with a new stream from their body, which {@link FileContentStreamProvider} makes safe for the
+ * progress listeners.
+ */
+class RetryingS3Client implements S3Client {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryingS3Client.class);
+
+    static final String ATTEMPTS_PROPERTY = "s3.wagon.throttle.attempts";
+    static final String ADAPTIVE_PROPERTY = "s3.wagon.throttle.adaptive";
+    static final String MAX_RATE_PROPERTY = "s3.wagon.throttle.max.rate";
+    static final String INCREASE_PROPERTY = "s3.wagon.throttle.increase";
+    static final String DECREASE_PROPERTY = "s3.wagon.throttle.decrease";
+
+    private static final int ATTEMPTS = 3;
+    private static final long THROTTLED_BACKOFF_MILLIS = 100;
+    private static final long MAX_THROTTLED_BACKOFF_MILLIS = 20_000;
+
+    private final S3Client client;
+    private final int throttledAttempts;
+    private final Supplier<AdaptiveRateLimiter> rateLimiters;
+    // bucket -> rate limiter
+    private final Map<String, AdaptiveRateLimiter> limiters = new ConcurrentHashMap<>();
+
+    RetryingS3Client(S3Client client, int throttledAttempts, Supplier<AdaptiveRateLimiter> rateLimiters) {
+        if (throttledAttempts < 1) {
+            throw new IllegalArgumentException("Attempts for throttled requests must be at least 1, was " + throttledAttempts);
+        }
+
+        this.client = client;
+        this.throttledAttempts = throttledAttempts;
+        this.rateLimiters = rateLimiters;
+    }
+
+    static RetryingS3Client fromProperties(S3Client client) {
+        boolean adaptive = WagonProperties.getBoolean(ADAPTIVE_PROPERTY, true);
+        double maxRate = WagonProperties.getDouble(MAX_RATE_PROPERTY, 0);
+        double increase = WagonProperties.getDouble(INCREASE_PROPERTY, 5);
+        double decrease = WagonProperties.getDouble(DECREASE_PROPERTY, 0.5);
+
+        // fail on invalid settings now rather than on the first request
+        new AdaptiveRateLimiter(adaptive, maxRate, increase, decrease);
+        return new RetryingS3Client(client, WagonProperties.getInt(ATTEMPTS_PROPERTY, 10),
+                () -> new AdaptiveRateLimiter(adaptive, maxRate, increase, decrease));
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request, ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        S3Events.Call event = S3Events.INSTANCE.begin(S3Events.Type.GET, request.bucket(), request.key());
+        ResponseTransformer<GetObjectResponse, ReturnT> timed = S3Events.timed(event, transformer);
+        return call(request.bucket(), true, event, () -> client.getObject(request, timed));
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        S3Events.Call event = S3Events.INSTANCE.begin(S3Events.Type.HEAD, request.bucket(), request.key());
+        return call(request.bucket(), true, event, () -> client.headObject(request));
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        S3Events.Call event = S3Events.INSTANCE.begin(S3Events.Type.LIST, request.bucket(), request.prefix());
+        return call(request.bucket(), true, event, () -> client.listObjectsV2(request));
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        S3Events.Call event = S3Events.INSTANCE.begin(S3Events.Type.PUT, request.bucket(), request.key());
+        event.transferred(body.optionalContentLength().orElse(0L));
+        return call(request.bucket(), false, event, () -> client.putObject(request, body));
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        return call(request.bucket(), true, S3Events.Call.NONE, () -> client.createMultipartUpload(request));
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+        S3Events.Call event = S3Events.INSTANCE.begin(S3Events.Type.PUT, request.bucket(), request.key());
+        event.transferred(body.optionalContentLength().orElse(0L));
+        return call(request.bucket(), false, event, () -> client.uploadPart(request, body));
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return call(request.bucket(), true, S3Events.Call.NONE, () -> client.completeMultipartUpload(request));
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        return call(request.bucket(), true, S3Events.Call.NONE, () -> client.abortMultipartUpload(request));
+    }
+
+    /**
+     * @param measured whether the latency of the request tells how busy S3 is, which it doesn't for uploads, as it
+     *                 depends on their size
+     * @param event    the Flight Recorder event of the request
+     */
+    private <T> T call(String bucket, boolean measured, S3Events.Call event, Supplier<T> request) {
+        AdaptiveRateLimiter limiter = limiters.computeIfAbsent(bucket, b -> rateLimiters.get());
+        int throttled = 0;
+        int failed = 0;
+
+        while (true) {
+            try {
+                acquire(limiter);
+                event.attempt();
+                long start = System.nanoTime();
+                T response = request.get();
+                limiter.succeeded(measured ? System.nanoTime() - start : -1);
+                event.succeeded(response);
+                return response;
+            } catch (SdkException | UncheckedIOException e) {
+                try {
+                    if (ConcurrentTransfers.isThrottling(e)) {
+                        limiter.throttled();
+                        WagonMetrics.forBucket(bucket).throttled();
+                        if (++throttled >= throttledAttempts) {
+                            event.failed(e);
+                            throw e;
+                        }
+                        logger.debug("Throttled by S3, retrying at {} requests/s: {}", limiter.rate(), e.toString());
+                        backoffThrottled(throttled);
+                    } else {
+                        if (++failed >= ATTEMPTS || !ConcurrentTransfers.isRetryable(e)) {
+                            event.failed(e);
+                            throw e;
+                        }
+                        WagonMetrics.forBucket(bucket).retried();
+                        ConcurrentTransfers.backoff(failed);
+                    }
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    event.failed(e);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static void acquire(AdaptiveRateLimiter limiter) {
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.create("Interrupted while waiting to send a request to S3", e);
+        }
+    }
+
+    private static void backoffThrottled(int attempt) throws InterruptedException {
+        long ceiling = Math.min(MAX_THROTTLED_BACKOFF_MILLIS, THROTTLED_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
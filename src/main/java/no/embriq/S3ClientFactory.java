@@ -0,0 +1,202 @@
+package no.embriq;
+
+import io.netty.channel.ChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.core.SdkSystemSetting;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3CrtAsyncClientBuilder;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the S3 client the wagon talks to. The default is the SDK's synchronous client on Apache HttpClient. The
+ * {@code netty} and {@code crt} engines are {@link S3AsyncClient}s, on Netty or on the AWS Common Runtime, with the
+ * blocking wagon operations on top of them. Those need no thread per connection, and the CRT one is tuned for
+ * saturating the network interface.
+ * <p>
+ * Maven instantiates the wagon per lookup, so the wagons share a client per endpoint and region. It's built when it's
+ * first used, and with {@link CachedCredentialsProvider} enabled its temporary credentials are reused across builds.
+ * <p>
+ * The pool settings apply to the Apache and Netty engines. A connection is reused for at most the time to live, and
+ * closed once idle for the idle timeout. TCP keep-alive keeps idle connections from being dropped by NAT gateways and
+ * firewalls in between.
+ * <p>
+ * The CRT engine needs {@code software.amazon.awssdk.crt:aws-crt} next to the extension. Without it the Netty engine is
+ * used instead.
+ */
+final class S3ClientFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3ClientFactory.class);
+
+    static final String ENDPOINT_OVERRIDE_PROPERTY = "s3.wagon.endpoint";
+    static final String ENGINE_PROPERTY = "s3.wagon.http.client";
+    static final String MAX_CONNECTIONS_PROPERTY = "s3.wagon.http.max.connections";
+    static final String RECEIVE_BUFFER_PROPERTY = "s3.wagon.http.receive.buffer";
+    static final String SEND_BUFFER_PROPERTY = "s3.wagon.http.send.buffer";
+    static final String TARGET_THROUGHPUT_PROPERTY = "s3.wagon.http.target.throughput";
+    static final String CONNECTION_TTL_PROPERTY = "s3.wagon.http.connection.ttl";
+    static final String IDLE_TIMEOUT_PROPERTY = "s3.wagon.http.idle.timeout";
+    static final String CONNECT_TIMEOUT_PROPERTY = "s3.wagon.http.connect.timeout";
+    static final String TCP_KEEPALIVE_PROPERTY = "s3.wagon.http.tcp.keepalive";
+
+    enum Engine {
+        APACHE, NETTY, CRT
+    }
+
+    // endpoint and region -> client
+    private static final Map<String, S3Client> clients = new ConcurrentHashMap<>();
+
+    private S3ClientFactory() {
+    }
+
+    /**
+     * @return a client that is shared by all wagons for the same endpoint and region, and only built once it's used
+     */
+    static S3Client shared() {
+        String key = WagonProperties.get(ENDPOINT_OVERRIDE_PROPERTY) + " " + SdkSystemSetting.AWS_REGION.getStringValue().orElse(null);
+        return clients.computeIfAbsent(key, k -> new LazyS3Client(S3ClientFactory::create));
+    }
+
+    static S3Client create() {
+        return RetryingS3Client.fromProperties(createClient());
+    }
+
+    private static S3Client createClient() {
+        Engine engine = engine();
+        URI endpointOverride = endpointOverride();
+        int maxConnections = WagonProperties.getInt(MAX_CONNECTIONS_PROPERTY, 0);
+        AwsCredentialsProvider credentialsProvider = CachedCredentialsProvider.fromProperties();
+
+        if (engine == Engine.CRT) {
+            try {
+                return new AsyncS3Client(crtClient(endpointOverride, maxConnections, credentialsProvider));
+            } catch (IllegalStateException | LinkageError e) {
+                logger.warn("The CRT based S3 client is not available, using Netty instead: {}", e.toString());
+                engine = Engine.NETTY;
+            }
+        }
+
+        if (engine == Engine.NETTY) {
+            return new AsyncS3Client(nettyClient(endpointOverride, maxConnections, credentialsProvider));
+        }
+
+        ApacheHttpClient.Builder httpClient = ApacheHttpClient.builder();
+        httpClient.tcpKeepAlive(WagonProperties.getBoolean(TCP_KEEPALIVE_PROPERTY, false));
+        if (maxConnections > 0) {
+            httpClient.maxConnections(maxConnections);
+        }
+        duration(CONNECTION_TTL_PROPERTY).ifPresent(httpClient::connectionTimeToLive);
+        duration(IDLE_TIMEOUT_PROPERTY).ifPresent(httpClient::connectionMaxIdleTime);
+        duration(CONNECT_TIMEOUT_PROPERTY).ifPresent(httpClient::connectionTimeout);
+
+        S3ClientBuilder builder = S3Client.builder()
+                                          .httpClientBuilder(httpClient)
+                                          .credentialsProvider(credentialsProvider)
+                                          // see RetryingS3Client
+                                          .overrideConfiguration(o -> o.retryStrategy(AwsRetryStrategy.doNotRetry()));
+        if (endpointOverride != null) {
+            // to allow for testing with an S3 mock
+            builder.endpointOverride(endpointOverride);
+        }
+        return builder.build();
+    }
+
+    private static S3AsyncClient nettyClient(URI endpointOverride, int maxConnections, AwsCredentialsProvider credentialsProvider) {
+        NettyNioAsyncHttpClient.Builder httpClient = NettyNioAsyncHttpClient.builder();
+        httpClient.tcpKeepAlive(WagonProperties.getBoolean(TCP_KEEPALIVE_PROPERTY, false));
+        if (maxConnections > 0) {
+            httpClient.maxConcurrency(maxConnections);
+        }
+        duration(CONNECTION_TTL_PROPERTY).ifPresent(httpClient::connectionTimeToLive);
+        duration(IDLE_TIMEOUT_PROPERTY).ifPresent(httpClient::connectionMaxIdleTime);
+        duration(CONNECT_TIMEOUT_PROPERTY).ifPresent(httpClient::connectionTimeout);
+
+        long receiveBuffer = WagonProperties.getSize(RECEIVE_BUFFER_PROPERTY, 0);
+        if (receiveBuffer > 0) {
+            httpClient.putChannelOption(ChannelOption.SO_RCVBUF, (int) receiveBuffer);
+        }
+        long sendBuffer = WagonProperties.getSize(SEND_BUFFER_PROPERTY, 0);
+        if (sendBuffer > 0) {
+            httpClient.putChannelOption(ChannelOption.SO_SNDBUF, (int) sendBuffer);
+        }
+
+        S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                                                    .httpClientBuilder(httpClient)
+                                                    .credentialsProvider(credentialsProvider)
+                                                    // see AsyncS3Client
+                                                    .overrideConfiguration(o -> o.retryStrategy(AwsRetryStrategy.doNotRetry()));
+        if (endpointOverride != null) {
+            builder.endpointOverride(endpointOverride);
+        }
+        return builder.build();
+    }
+
+    private static S3AsyncClient crtClient(URI endpointOverride, int maxConnections, AwsCredentialsProvider credentialsProvider) {
+        S3CrtAsyncClientBuilder builder = S3AsyncClient.crtBuilder()
+                                                       .retryConfiguration(r -> r.numRetries(0))
+                                                       .credentialsProvider(credentialsProvider);
+        if (maxConnections > 0) {
+            builder.maxConcurrency(maxConnections);
+        }
+        // the CRT manages its own connections, only the connect timeout applies to it
+        duration(CONNECT_TIMEOUT_PROPERTY).ifPresent(timeout -> builder.httpConfiguration(h -> h.connectionTimeout(timeout)));
+
+        long receiveBuffer = WagonProperties.getSize(RECEIVE_BUFFER_PROPERTY, 0);
+        if (receiveBuffer > 0) {
+            builder.initialReadBufferSizeInBytes(receiveBuffer);
+        }
+
+        double targetThroughput = WagonProperties.getDouble(TARGET_THROUGHPUT_PROPERTY, 0);
+        if (targetThroughput > 0) {
+            builder.targetThroughputInGbps(targetThroughput);
+        }
+
+        if (endpointOverride != null) {
+            builder.endpointOverride(endpointOverride);
+        }
+        return builder.build();
+    }
+
+    static Engine engine() {
+        String value = WagonProperties.get(ENGINE_PROPERTY);
+
+        if (value == null) {
+            return Engine.APACHE;
+        }
+
+        try {
+            return Engine.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + ENGINE_PROPERTY + ": " + value
+                    + ", expected apache, netty or crt", e);
+        }
+    }
+
+    /**
+     * @return the duration a property is set to, empty if it isn't set and the SDK default applies
+     */
+    private static Optional<Duration> duration(String property) {
+        if (WagonProperties.get(property) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(Duration.ofMillis(WagonProperties.getMillis(property, 0)));
+    }
+
+    private static URI endpointOverride() {
+        String endpointOverride = WagonProperties.get(ENDPOINT_OVERRIDE_PROPERTY);
+        return endpointOverride == null ? null : URI.create(endpointOverride);
+    }
+}
@@ -0,0 +1,151 @@
+package no.embriq;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Flight Recorder events for the S3 requests of the wagon, so a recording of a slow build shows them next to the GC
+ * and thread activity instead of as anonymous socket reads.
+ * <p>
+ * This class doesn't use {@code jdk.jfr} itself. The events are recorded by {@code JfrS3Events}, which is only loaded
+ * if the JVM has Flight Recorder, so the wagon still runs on a Java 8 without it. Without it, or while no recording
+ * has the events enabled, {@link #begin} returns a call that records nothing.
+ */
+class S3Events {
+
+    static final S3Events INSTANCE = load();
+
+    enum Type {
+        GET, PUT, HEAD, LIST
+    }
+
+    private static S3Events load() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return (S3Events) Class.forName("no.embriq.JfrS3Events").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new S3Events();
+        }
+    }
+
+    /**
+     * @param key the key, or prefix for a listing
+     */
+    Call begin(Type type, String bucket, String key) {
+        return Call.NONE;
+    }
+
+    /**
+     * One request, over all its attempts. The time to first byte is measured from the start of the last attempt to
+     * the response headers; the transfer time from there to the end of the response body.
+     */
+    static class Call {
+
+        static final Call NONE = new Call();
+
+        void attempt() {
+        }
+
+        void responded(int status) {
+        }
+
+        void transferred(long bytes) {
+        }
+
+        /**
+         * The response body is read after the request returns, so the call ends when the body is.
+         */
+        void streaming() {
+        }
+
+        void succeeded(Object response) {
+            if (response instanceof SdkResponse) {
+                responded(((SdkResponse) response).sdkHttpResponse().statusCode());
+            }
+            end();
+        }
+
+        void failed(Exception e) {
+            responded(e instanceof AwsServiceException ? ((AwsServiceException) e).statusCode() : 0);
+            end();
+        }
+
+        void end() {
+        }
+
+        boolean isRecording() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the bytes of the response body as it is read, ending the call at the end of the body or when it's closed.
+     */
+    static <T> ResponseTransformer<GetObjectResponse, T> timed(Call call, ResponseTransformer<GetObjectResponse, T> transformer) {
+        if (!call.isRecording()) {
+            return transformer;
+        }
+
+        return new ResponseTransformer<GetObjectResponse, T>() {
+            @Override
+            public T transform(GetObjectResponse response, AbortableInputStream in) throws Exception {
+                call.responded(response.sdkHttpResponse().statusCode());
+                call.streaming();
+                return transformer.transform(response, AbortableInputStream.create(new TimedInputStream(in, call), in));
+            }
+
+            @Override
+            public boolean needsConnectionLeftOpen() {
+                return transformer.needsConnectionLeftOpen();
+            }
+        };
+    }
+
+    private static final class TimedInputStream extends FilterInputStream {
+
+        private final Call call;
+
+        TimedInputStream(InputStream in, Call call) {
+            super(in);
+            this.call = call;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                call.end();
+            } else {
+                call.transferred(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read < 0) {
+                call.end();
+            } else {
+                call.transferred(read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                call.end();
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package no.embriq;
 
 
 import org.apache.maven.wagon.AbstractWagon;
+import org.apache.maven.wagon.ConnectionException;
 import org.apache.maven.wagon.ResourceDoesNotExistException;
 import org.apache.maven.wagon.TransferFailedException;
 import org.apache.maven.wagon.authorization.AuthorizationException;
@@ -15,134 +16,840 @@ import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.SdkHttpResponse;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 public class S3Wagon extends AbstractWagon {
 
     private static final Logger logger = LoggerFactory.getLogger(S3Wagon.class);
-    private static final String ENDPOINT_OVERRIDE_PROPERTY = "s3.wagon.endpoint";
-    private static final String ENDPOINT_OVERRIDE_ENV = "S3_WAGON_ENDPOINT";
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final int NOT_MODIFIED = 304;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    // files up to this size that have to be digested before they're uploaded are read once, into memory
+    private static final long BUFFERED_UPLOAD_SIZE = 8L * 1024 * 1024;
+
+    // the wagon is instantiated per lookup, so requests are coalesced across all instances
+    private static final RequestCoalescer coalescer = new RequestCoalescer();
 
     private final S3Client s3Client;
+    private final MultipartUploader multipartUploader;
+    private final RangedDownloader rangedDownloader;
+    private final ResumableDownloader resumableDownloader;
+    private final MetadataCache metadataCache;
+    private final MetadataStore metadataStore;
+    private final SharedCache sharedCache;
+    private final WriteBehindUploader writeBehindUploader;
+    private final DirectoryUploader directoryUploader;
+    private final UnchangedUploads unchangedUploads;
+    private final InlineChecksums inlineChecksums;
+    private final ConnectionPrewarmer connectionPrewarmer;
+    private final SiblingPrefetcher siblingPrefetcher;
+    private WagonMetrics metrics;
 
     public S3Wagon() {
-        this(createS3Client());
+        this(S3ClientFactory.shared());
     }
 
     public S3Wagon(S3Client s3Client) {
-        this.s3Client = s3Client;
+        this(s3Client, MultipartUploader.fromProperties(s3Client), RangedDownloader.fromProperties(s3Client),
+                ResumableDownloader.fromProperties(s3Client), MetadataCache.fromProperties(), MetadataStore.fromProperties(),
+                SharedCache.fromProperties(), WriteBehindUploader.fromProperties(s3Client),
+                DirectoryUploader.fromProperties(), UnchangedUploads.fromProperties(s3Client),
+                InlineChecksums.fromProperties(), ConnectionPrewarmer.fromProperties(s3Client),
+                SiblingPrefetcher.fromProperties(s3Client));
     }
 
-    /**
-     * To allow for testing with an S3 mock
-     */
-    private static S3Client createS3Client() {
-        String endpointOverride = System.getProperty(ENDPOINT_OVERRIDE_PROPERTY);
-
-        if (StringUtils.isEmpty(endpointOverride)) {
-            endpointOverride = System.getenv(ENDPOINT_OVERRIDE_ENV);
-        }
-
-        if (StringUtils.isEmpty(endpointOverride)) {
-            return S3Client.create();
-        }
-
-        return S3Client.builder()
-                       .endpointOverride(URI.create(endpointOverride))
-                       .build();
+    S3Wagon(S3Client s3Client, MultipartUploader multipartUploader, RangedDownloader rangedDownloader,
+            ResumableDownloader resumableDownloader, MetadataCache metadataCache, MetadataStore metadataStore,
+            SharedCache sharedCache, WriteBehindUploader writeBehindUploader, DirectoryUploader directoryUploader,
+            UnchangedUploads unchangedUploads, InlineChecksums inlineChecksums, ConnectionPrewarmer connectionPrewarmer,
+            SiblingPrefetcher siblingPrefetcher) {
+        this.s3Client = s3Client;
+        this.multipartUploader = multipartUploader;
+        this.rangedDownloader = rangedDownloader;
+        this.resumableDownloader = resumableDownloader;
+        this.metadataCache = metadataCache;
+        this.metadataStore = metadataStore;
+        this.sharedCache = sharedCache;
+        this.writeBehindUploader = writeBehindUploader;
+        this.directoryUploader = directoryUploader;
+        this.unchangedUploads = unchangedUploads;
+        this.inlineChecksums = inlineChecksums;
+        this.connectionPrewarmer = connectionPrewarmer;
+        this.siblingPrefetcher = siblingPrefetcher;
     }
 
     @Override
     protected void openConnectionInternal() {
+        metrics = WagonMetrics.forRepository(getRepository().getUrl());
+        connectionPrewarmer.prewarm(getRepository().getHost());
+        writeBehindUploader.open(getRepository().getHost());
     }
 
     @Override
-    protected void closeConnection() {
-
+    protected void closeConnection() throws ConnectionException {
+        try {
+            writeBehindUploader.close();
+        } catch (TransferFailedException e) {
+            // Maven only logs a failure to disconnect at debug level, and nothing will report this upload later
+            logger.error(e.getMessage(), e);
+            throw new ConnectionException(e.getMessage(), e);
+        } finally {
+            metadataStore.flushIfDue();
+            sharedCache.trim();
+            siblingPrefetcher.expire();
+        }
     }
 
     @Override
     public void get(String resourceName, File destination) throws TransferFailedException, ResourceDoesNotExistException, AuthorizationException {
+        long start = System.nanoTime();
+
+        try {
+            getResource(resourceName, destination);
+            metrics.get.succeeded(start, destination.length());
+        } catch (ResourceDoesNotExistException e) {
+            metrics.get.notFound(start);
+            throw e;
+        } catch (TransferFailedException | AuthorizationException | RuntimeException e) {
+            metrics.get.failed(start);
+            throw e;
+        }
+    }
+
+    private void getResource(String resourceName, File destination) throws TransferFailedException, ResourceDoesNotExistException,
+                                                                            AuthorizationException {
+        String flightKey = "GET " + getRepository().getHost() + "/" + createS3Key(resourceName);
+        writeBehindUploader.await(createS3Key(resourceName));
+
+        if (inlineChecksums.isEnabled() && getInlineChecksum(resourceName, destination)) {
+            return;
+        }
+
+        if (siblingPrefetcher.isEnabled() && getPrefetched(resourceName, destination)) {
+            return;
+        }
+
+        try (RequestCoalescer.Flight<File> flight = coalescer.join(flightKey)) {
+            if (!flight.isLeader()) {
+                File downloaded = flight.await();
+                if (downloaded != null) {
+                    getCopy(resourceName, destination, downloaded);
+                    return;
+                }
+            }
+
+            get(resourceName, destination, null, null);
+
+            if (flight.isLeader()) {
+                flight.complete(destination);
+            }
+            siblingPrefetcher.prefetchSiblings(getRepository().getHost(), createS3Key(resourceName), destination.toPath(),
+                    !inlineChecksums.isEnabled());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while waiting for another download of " + resourceName, e);
+        }
+    }
+
+    /**
+     * @param modifiedSince only download the resource if it was modified after this, {@code null} to always download it
+     * @param noneMatch     only download the resource if its ETag is not this one, {@code null} to ignore the ETag
+     * @return {@code false} if the resource was not modified
+     */
+    private boolean get(String resourceName, File destination, Instant modifiedSince, String noneMatch) throws TransferFailedException,
+                                                                                                                ResourceDoesNotExistException,
+                                                                                                                AuthorizationException {
         String key = createS3Key(resourceName);
         String bucket = getRepository().getHost();
+        boolean conditional = modifiedSince != null || noneMatch != null;
 
         Resource resource = new Resource(resourceName);
+        DownloadTarget partial = null;
+        boolean initiated = false;
+        MetadataCache.Entry cached = metadataCache.get(bucket, key);
 
-        try {
+        if (cached != null && !cached.exists()) {
+            ResourceDoesNotExistException e = new ResourceDoesNotExistException("Resource " + resourceName
+                    + " does not exist in the repository");
             fireGetInitiated(resource, destination);
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw e;
+        }
+
+        if (cached != null && modifiedSince != null && cached.lastModified() <= modifiedSince.toEpochMilli()) {
+            return false;
+        }
+
+        try {
+            ResponseInputStream<GetObjectResponse> response = null;
+
+            if (!conditional) {
+                // a conditional GET may well not download anything, so it is only initiated once it does
+                fireGetInitiated(resource, destination);
+                initiated = true;
+
+                String sharedETag = sharedCache.eTag(bucket, key);
+                if (sharedETag != null) {
+                    response = getUnlessShared(bucket, key, sharedETag, cached);
+                    if (response == null && getShared(resource, destination, bucket, key, sharedETag)) {
+                        return true;
+                    }
+                } else {
+                    partial = resumableDownloader.claimPartial(destination.toPath());
+                    response = partial == null ? null : resumableDownloader.resume(bucket, key, partial);
+                }
+            }
+
+            if (response == null) {
+                discard(partial);
+                partial = null;
+                response = getObject(bucket, key, modifiedSince, noneMatch);
+            }
+
+            if (conditional) {
+                long lastModified = response.response().lastModified().toEpochMilli();
+                metadataStore.record(bucket, key, lastModified, response.response().eTag());
+
+                // S3 ignores If-Modified-Since when If-None-Match is sent, so a changed ETag alone doesn't make it newer
+                if (modifiedSince != null && lastModified <= modifiedSince.toEpochMilli()) {
+                    ResumableDownloader.abort(response);
+                    return false;
+                }
 
-            ResponseInputStream<GetObjectResponse> response = s3Client.getObject(r -> r.bucket(bucket).key(key));
-            resource.setContentLength(response.response().contentLength());
+                fireGetInitiated(resource, destination);
+                initiated = true;
+            }
+
+            resource.setContentLength(RangedDownloader.objectSize(response.response()));
             resource.setLastModified(response.response().lastModified().toEpochMilli());
+            metadataCache.putExisting(bucket, key, resource.getContentLength(), resource.getLastModified(), response.response().eTag(),
+                    InlineChecksums.checksums(response.response().metadata()));
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Getting: resourceName={} key={} bucket={} destination={} resource.inspect()={} response.toString()={}",
                         resourceName, key, bucket, destination, resource.inspect(), response.toString());
             }
 
-            getTransfer(resource, destination, response);
+            getTransfer(resource, destination, bucket, key, response, partial);
+            return true;
         } catch (NoSuchKeyException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            metadataCache.putMissing(bucket, key);
+            fireGetError(resource, destination, e, initiated);
             throw new ResourceDoesNotExistException("Resource " + resourceName + " does not exist in the repository", e);
         } catch (AwsServiceException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            if (conditional && e.statusCode() == NOT_MODIFIED) {
+                recordNotModified(bucket, key, e);
+                return false;
+            }
+            fireGetError(resource, destination, e, initiated);
             handleAwsServiceException(e, resource);
-        } catch (SdkException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            return false;
+        } catch (SdkException | IOException e) {
+            fireGetError(resource, destination, e, initiated);
             throw new TransferFailedException("Error occurred while transferring resource " + resourceName, e);
+        } finally {
+            discard(partial);
+        }
+    }
+
+    /**
+     * With ranged downloads enabled the first GET only asks for the first part of the object. An empty object can't
+     * satisfy any range, so it is fetched again without one.
+     */
+    private ResponseInputStream<GetObjectResponse> getObject(String bucket, String key, Instant modifiedSince, String noneMatch) {
+        if (!rangedDownloader.isEnabled()) {
+            return s3Client.getObject(r -> r.bucket(bucket).key(key).ifModifiedSince(modifiedSince).ifNoneMatch(noneMatch));
+        }
+
+        try {
+            return s3Client.getObject(r -> r.bucket(bucket).key(key).ifModifiedSince(modifiedSince).ifNoneMatch(noneMatch)
+                                            .range(rangedDownloader.firstRange()));
+        } catch (AwsServiceException e) {
+            if (e.statusCode() != RANGE_NOT_SATISFIABLE) {
+                throw e;
+            }
+            return s3Client.getObject(r -> r.bucket(bucket).key(key).ifModifiedSince(modifiedSince).ifNoneMatch(noneMatch));
+        }
+    }
+
+    /**
+     * Asks for the object unless it is still the version in the shared cache, which the metadata cache may already know.
+     *
+     * @return the response, or {@code null} if the shared cache has the current version
+     */
+    private ResponseInputStream<GetObjectResponse> getUnlessShared(String bucket, String key, String sharedETag,
+                                                                   MetadataCache.Entry cached) {
+        if (cached != null && sharedETag.equals(cached.eTag())) {
+            return null;
+        }
+
+        try {
+            return getObject(bucket, key, null, sharedETag);
+        } catch (AwsServiceException e) {
+            if (e.statusCode() != NOT_MODIFIED) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Gets the resource from the shared cache. Listeners see the same events and progress as for a download. The cache
+     * is only a shortcut, so a cached version that can't be read is forgotten and the resource downloaded instead.
+     *
+     * @return {@code false} if the cached version was evicted in the meantime, or couldn't be read
+     */
+    private boolean getShared(Resource resource, File destination, String bucket, String key, String sharedETag) throws IOException,
+                                                                                                                       TransferFailedException {
+        createParentDirectories(destination);
+
+        try {
+            if (!sharedCache.copyTo(bucket, key, sharedETag, destination.toPath())) {
+                return false;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not get {} from the shared cache, downloading it instead: {}", resource.getName(), e.toString());
+            sharedCache.invalidate(bucket, key, sharedETag);
+            return false;
+        }
+
+        fireLocalGet(resource, destination);
+        logger.debug("Got {} from the shared cache", resource.getName());
+        return true;
+    }
+
+    /**
+     * Gets the resource by copying the file another thread just downloaded it to.
+     */
+    private void getCopy(String resourceName, File destination, File downloaded) throws TransferFailedException {
+        Resource resource = new Resource(resourceName);
+        fireGetInitiated(resource, destination);
+
+        try {
+            createParentDirectories(destination);
+            DownloadTarget.copy(downloaded.toPath(), destination.toPath());
+            fireLocalGet(resource, destination);
+        } catch (IOException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw new TransferFailedException("Error occurred while copying resource " + resourceName, e);
+        }
+    }
+
+    /**
+     * Gets a checksum file from the metadata of the file it is the checksum of, when that was looked at recently.
+     *
+     * @return {@code false} if the checksum isn't known, and has to be downloaded
+     */
+    private boolean getInlineChecksum(String resourceName, File destination) throws TransferFailedException {
+        String key = createS3Key(resourceName);
+        String name = InlineChecksums.checksumName(key);
+        if (name == null) {
+            return false;
+        }
+
+        MetadataCache.Entry checksummed = metadataCache.get(getRepository().getHost(), InlineChecksums.checksummedKey(key));
+        String checksum = checksummed == null ? null : checksummed.checksum(name);
+        if (checksum == null) {
+            return false;
+        }
+
+        Resource resource = new Resource(resourceName);
+        fireGetInitiated(resource, destination);
+
+        try {
+            createParentDirectories(destination);
+            try (DownloadTarget target = DownloadTarget.create(destination.toPath())) {
+                target.channel().write(ByteBuffer.wrap(checksum.getBytes(StandardCharsets.US_ASCII)));
+                target.commit();
+            }
+            fireLocalGet(resource, destination);
+        } catch (IOException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw new TransferFailedException("Error occurred while writing checksum " + resourceName, e);
+        }
+
+        logger.debug("Got {} from the metadata of {}", resourceName, InlineChecksums.checksummedKey(key));
+        return true;
+    }
+
+    /**
+     * Gets the resource from a prefetch started when its POM was downloaded, waiting for it if it is still running.
+     *
+     * @return {@code false} if it wasn't prefetched, and has to be downloaded
+     */
+    private boolean getPrefetched(String resourceName, File destination) throws TransferFailedException {
+        Resource resource = new Resource(resourceName);
+
+        try {
+            createParentDirectories(destination);
+            SiblingPrefetcher.Staged staged = siblingPrefetcher.take(getRepository().getHost(), createS3Key(resourceName),
+                    destination.toPath());
+            if (staged == null) {
+                return false;
+            }
+
+            resource.setLastModified(staged.lastModified);
+            fireGetInitiated(resource, destination);
+            fireLocalGet(resource, destination);
+        } catch (IOException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw new TransferFailedException("Error occurred while copying prefetched resource " + resourceName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while waiting for the prefetch of " + resourceName, e);
         }
+
+        logger.debug("Got {} from a prefetch", resourceName);
+        return true;
+    }
+
+    /**
+     * Fires the error of a download, initiating it first if it wasn't, as listeners pair the two. A conditional GET is
+     * only initiated once it downloads something.
+     */
+    private void fireGetError(Resource resource, File destination, Exception e, boolean initiated) {
+        if (!initiated) {
+            fireGetInitiated(resource, destination);
+        }
+        fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+    }
+
+    /**
+     * Fires the events of a download for a file that is already at {@code destination}.
+     */
+    private void fireLocalGet(Resource resource, File destination) throws IOException {
+        resource.setContentLength(destination.length());
+        fireGetStarted(resource, destination);
+
+        TransferEvent progressEvent = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET);
+        try (FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.READ)) {
+            TransferProgress.replay(channel, 0, channel.size(), (buffer, length) -> fireTransferProgress(progressEvent, buffer, length));
+        }
+
+        fireGetCompleted(resource, destination);
     }
 
+    /**
+     * A 304 response still carries the object's Last-Modified and ETag headers.
+     */
+    private void recordNotModified(String bucket, String key, AwsServiceException e) {
+        if (!metadataStore.isEnabled() || e.awsErrorDetails() == null || e.awsErrorDetails().sdkHttpResponse() == null) {
+            return;
+        }
+
+        SdkHttpResponse response = e.awsErrorDetails().sdkHttpResponse();
+        Optional<String> lastModified = response.firstMatchingHeader("Last-Modified");
+
+        if (lastModified.isPresent()) {
+            try {
+                long millis = DateTimeFormatter.RFC_1123_DATE_TIME.parse(lastModified.get(), Instant::from).toEpochMilli();
+                metadataStore.record(bucket, key, millis, response.firstMatchingHeader("ETag").orElse(null));
+            } catch (DateTimeParseException ignored) {
+                // not worth failing the build over, the key is simply revalidated next time
+            }
+        }
+    }
+
+    /**
+     * Writes the response to a temporary file that is renamed to {@code destination} once complete. Continues a claimed
+     * partial download if {@code partial} is given, and fetches the rest of the object in parallel when the response only
+     * holds its first part.
+     */
+    private void getTransfer(Resource resource, File destination, String bucket, String key,
+                             ResponseInputStream<GetObjectResponse> response, DownloadTarget partial) throws TransferFailedException {
+        createParentDirectories(destination);
+        fireGetStarted(resource, destination);
+
+        TransferEvent progressEvent = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_GET);
+        Map<String, String> checksums = inlineChecksums.isEnabled()
+                ? InlineChecksums.checksums(response.response().metadata())
+                : Collections.emptyMap();
+        ContentDigests digests = InlineChecksums.digests(checksums);
+        // the shared cache only takes content that is verified, and keeps its MD5 to notice if it is changed later
+        ContentDigests md5 = sharedCache.isEnabled() ? new ContentDigests(Collections.singleton(ContentDigests.MD5)) : null;
+        TransferProgress progress = (buffer, length) -> {
+            if (digests != null) {
+                digests.transferred(buffer, length);
+            }
+            if (md5 != null) {
+                md5.transferred(buffer, length);
+            }
+            fireTransferProgress(progressEvent, buffer, length);
+        };
+
+        try (ResponseInputStream<GetObjectResponse> input = response;
+             DownloadTarget target = partial != null ? partial : DownloadTarget.create(destination.toPath())) {
+            try {
+                long resumeFrom = target.size();
+
+                if (resumeFrom > 0) {
+                    // listeners compute checksums from the progress, so they need the bytes of the earlier attempt too
+                    TransferProgress.replay(target.channel(), 0, resumeFrom, progress);
+                    resumableDownloader.download(bucket, key, input, target, progress);
+                } else if (RangedDownloader.isPartial(input.response())) {
+                    rangedDownloader.download(bucket, key, input, target, progress);
+                } else {
+                    resumableDownloader.download(bucket, key, input, target, progress);
+                }
+
+                if (digests != null) {
+                    try {
+                        InlineChecksums.verify(key, checksums, digests);
+                    } catch (IOException e) {
+                        // resuming from corrupt bytes would only fail again
+                        target.keepPartial(null);
+                        throw e;
+                    }
+                }
+
+                target.commit();
+
+                if (md5 != null && (digests != null || SharedCache.isMd5(input.response().eTag(), md5.hex(ContentDigests.MD5)))) {
+                    sharedCache.put(bucket, key, input.response().eTag(), destination.toPath(), md5.hex(ContentDigests.MD5));
+                }
+            } catch (IOException | RuntimeException e) {
+                ResumableDownloader.abort(input);
+                throw e;
+            }
+        } catch (IOException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+            throw new TransferFailedException("GET request of: " + resource.getName() + " from " + repository.getName() + " failed", e);
+        }
+
+        fireGetCompleted(resource, destination);
+    }
+
+    private static void discard(DownloadTarget target) {
+        if (target != null) {
+            try {
+                target.close();
+            } catch (IOException e) {
+                logger.debug("Could not clean up temporary download file: {}", e.toString());
+            }
+        }
+    }
 
     public void put(File source, String resourceName) throws TransferFailedException, AuthorizationException {
+        long start = System.nanoTime();
+
+        try {
+            putResource(source, resourceName);
+            metrics.put.succeeded(start, source.length());
+        } catch (TransferFailedException | AuthorizationException | RuntimeException e) {
+            metrics.put.failed(start);
+            throw e;
+        }
+    }
+
+    private void putResource(File source, String resourceName) throws TransferFailedException, AuthorizationException {
         String key = createS3Key(resourceName);
         String bucketName = repository.getHost();
 
         Resource resource = new Resource(resourceName);
         resource.setContentLength(source.length());
         resource.setLastModified(source.lastModified());
+        metadataCache.invalidate(bucketName, key);
+        metadataStore.invalidate(bucketName, key);
+        siblingPrefetcher.invalidate(bucketName, key);
+
+        if (writeBehindUploader.isEnabled()) {
+            if (!isRepositoryMetadata(resourceName)) {
+                putLater(resource, source, bucketName, key);
+                return;
+            }
+            // metadata makes the artifacts it lists visible, so they have to be there first
+            writeBehindUploader.flush();
+        }
 
         try {
             firePutInitiated(resource, source);
             firePutStarted(resource, source);
 
-            byte[] objectData = Files.readAllBytes(source.toPath());
-
-            s3Client.putObject(r -> r.bucket(bucketName).key(key), RequestBody.fromBytes(objectData));
+            TransferEvent progressEvent = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_PUT);
+            upload(bucketName, key, source.toPath(), source.length(), (buffer, length) -> fireTransferProgress(progressEvent, buffer, length));
 
             firePutCompleted(resource, source);
         } catch (AwsServiceException e) {
             handleAwsServiceException(e, new Resource(resourceName));
-        } catch (IOException | SdkException e) {
+        } catch (UncheckedIOException | SdkException e) {
             fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
             throw new TransferFailedException("Error occurred while transferring resource " + resourceName, e);
         }
     }
 
+    /**
+     * Queues the upload and reports it as done. A failure is reported by a later {@code put} of any wagon connected to
+     * the bucket, at the latest when the repository metadata is uploaded.
+     */
+    private void putLater(Resource resource, File source, String bucketName, String key) throws TransferFailedException {
+        firePutInitiated(resource, source);
+
+        try {
+            writeBehindUploader.submit(key, source.toPath(), file -> {
+                upload(bucketName, key, file, Files.size(file), TransferProgress.NONE);
+                metadataCache.invalidate(bucketName, key);
+            });
+
+            firePutStarted(resource, source);
+
+            TransferEvent progressEvent = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_PUT);
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                TransferProgress.replay(channel, 0, channel.size(), (buffer, length) -> fireTransferProgress(progressEvent, buffer, length));
+            }
+
+            firePutCompleted(resource, source);
+        } catch (TransferFailedException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+            throw e;
+        } catch (IOException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+            throw new TransferFailedException("Error occurred while queueing resource " + resource.getName(), e);
+        }
+    }
+
+    private void upload(String bucketName, String key, Path file, long length, TransferProgress progress) {
+        Map<String, String> metadata = new HashMap<>();
+        String crc32c = null;
+        boolean checksums = inlineChecksums.isEnabled() && !InlineChecksums.isChecksumFile(key);
+        ContentDigests digests = null;
+        byte[] content = null;
+
+        // every digest needed is computed in the same read of the file. The digests go into the request headers, so
+        // they're needed before the body is sent: small files are kept from that read, larger ones read again, mostly
+        // from the page cache
+        if (unchangedUploads.isEnabled() || checksums) {
+            Set<String> algorithms = new HashSet<>();
+            if (unchangedUploads.isEnabled()) {
+                algorithms.add(ContentDigests.SHA256);
+            }
+            if (checksums) {
+                algorithms.addAll(InlineChecksums.algorithms());
+            }
+
+            if (length <= BUFFERED_UPLOAD_SIZE && !multipartUploader.shouldUpload(length)) {
+                try {
+                    content = Files.readAllBytes(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                digests = new ContentDigests(algorithms);
+                digests.transferred(content, content.length);
+            } else {
+                digests = ContentDigests.of(file, algorithms);
+            }
+        }
+
+        if (checksums) {
+            metadata.putAll(InlineChecksums.metadata(digests));
+            crc32c = digests.base64(ContentDigests.CRC32C);
+        }
+
+        if (unchangedUploads.isEnabled()) {
+            String sha256 = digests.hex(ContentDigests.SHA256);
+
+            if (unchangedUploads.isUnchanged(bucketName, key, length, sha256)) {
+                logger.info("Not uploading {}, it is unchanged", key);
+                if (content != null) {
+                    progress.transferred(content, content.length);
+                    return;
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    TransferProgress.replay(channel, 0, length, progress);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+
+            metadata.put(UnchangedUploads.SHA256_METADATA, sha256);
+        }
+
+        if (multipartUploader.shouldUpload(length)) {
+            multipartUploader.upload(bucketName, key, file, length, metadata, progress);
+        } else {
+            Map<String, String> objectMetadata = metadata;
+            String checksumCRC32C = crc32c;
+            try (FileContentStreamProvider provider = content != null ? new FileContentStreamProvider(content, progress)
+                                                                      : new FileContentStreamProvider(file, 0, length, progress)) {
+                RequestBody body = RequestBody.fromContentProvider(provider, length, CONTENT_TYPE);
+                s3Client.putObject(r -> r.bucket(bucketName).key(key).metadata(objectMetadata).checksumCRC32C(checksumCRC32C), body);
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsDirectoryCopy() {
+        return true;
+    }
+
+    /**
+     * Uploads the files of the directory in parallel. The events of a file are fired together once it is uploaded, so
+     * listeners never see the events of different files interleaved.
+     */
+    @Override
+    public void putDirectory(File sourceDirectory, String destinationDirectory) throws TransferFailedException,
+                                                                                      ResourceDoesNotExistException,
+                                                                                      AuthorizationException {
+        if (!sourceDirectory.isDirectory()) {
+            throw new ResourceDoesNotExistException("Directory " + sourceDirectory + " does not exist");
+        }
+
+        String bucketName = getRepository().getHost();
+        String prefix = directoryPrefix(destinationDirectory);
+        Object eventLock = new Object();
+
+        try {
+            directoryUploader.upload(sourceDirectory.toPath(), (file, relativePath) -> {
+                String key = createS3Key(prefix + relativePath);
+                metadataCache.invalidate(bucketName, key);
+                metadataStore.invalidate(bucketName, key);
+                siblingPrefetcher.invalidate(bucketName, key);
+                upload(bucketName, key, file, file.toFile().length(), TransferProgress.NONE);
+            }, new DirectoryUploader.Listener() {
+                @Override
+                public void uploaded(Path file, String relativePath) {
+                    synchronized (eventLock) {
+                        firePutEvents(new Resource(prefix + relativePath), file.toFile());
+                    }
+                }
+
+                @Override
+                public void failed(Path file, String relativePath, Exception e) {
+                    synchronized (eventLock) {
+                        Resource resource = new Resource(prefix + relativePath);
+                        firePutInitiated(resource, file.toFile());
+                        fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
+                    }
+                }
+            });
+        } catch (AwsServiceException e) {
+            handleAwsServiceException(e, new Resource(destinationDirectory));
+        } catch (IOException | UncheckedIOException | SdkException e) {
+            throw new TransferFailedException("Error occurred while transferring directory " + sourceDirectory, e);
+        }
+    }
+
+    /**
+     * Maven asks for {@code "."} to put the directory at the root of the repository.
+     */
+    private static String directoryPrefix(String directory) {
+        String prefix = directory.replace('\\', '/');
+        if (".".equals(prefix)) {
+            return "";
+        }
+        return prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    /**
+     * Fires the events of an upload that is already done.
+     */
+    private void firePutEvents(Resource resource, File source) {
+        resource.setContentLength(source.length());
+        resource.setLastModified(source.lastModified());
+        firePutInitiated(resource, source);
+        firePutStarted(resource, source);
+
+        TransferEvent progressEvent = new TransferEvent(this, resource, TransferEvent.TRANSFER_PROGRESS, TransferEvent.REQUEST_PUT);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            TransferProgress.replay(channel, 0, channel.size(), (buffer, length) -> fireTransferProgress(progressEvent, buffer, length));
+        } catch (IOException e) {
+            logger.debug("Could not report the progress of {}: {}", resource.getName(), e.toString());
+        }
+
+        firePutCompleted(resource, source);
+    }
+
+    private static boolean isRepositoryMetadata(String resourceName) {
+        return resourceName.substring(resourceName.lastIndexOf('/') + 1).startsWith("maven-metadata");
+    }
+
     @Override
     public boolean resourceExists(String resourceName) throws TransferFailedException, AuthorizationException {
+        long start = System.nanoTime();
+
+        try {
+            boolean exists = checkExists(resourceName);
+            if (exists) {
+                metrics.resourceExists.succeeded(start, 0);
+            } else {
+                metrics.resourceExists.notFound(start);
+            }
+            return exists;
+        } catch (TransferFailedException | AuthorizationException | RuntimeException e) {
+            metrics.resourceExists.failed(start);
+            throw e;
+        }
+    }
+
+    private boolean checkExists(String resourceName) throws TransferFailedException, AuthorizationException {
         Repository repository = getRepository();
         String bucketName = repository.getHost();
         String key = createS3Key(resourceName);
 
+        writeBehindUploader.await(key);
+
+        MetadataCache.Entry cached = metadataCache.get(bucketName, key);
+        if (cached != null) {
+            return cached.exists();
+        }
+
+        try (RequestCoalescer.Flight<Boolean> flight = coalescer.join("HEAD " + bucketName + "/" + key)) {
+            if (!flight.isLeader()) {
+                Boolean exists = flight.await();
+                if (exists != null) {
+                    return exists;
+                }
+            }
+
+            boolean exists = headObject(resourceName, bucketName, key);
+
+            if (flight.isLeader()) {
+                flight.complete(exists);
+            }
+            return exists;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransferFailedException("Interrupted while waiting for another check of " + resourceName, e);
+        }
+    }
+
+    private boolean headObject(String resourceName, String bucketName, String key) throws TransferFailedException, AuthorizationException {
         try {
-            s3Client.headObject(r -> r.bucket(bucketName).key(key));
+            HeadObjectResponse metadata = s3Client.headObject(r -> r.bucket(bucketName).key(key));
+            metadataCache.putExisting(bucketName, key, metadata.contentLength(), metadata.lastModified().toEpochMilli(), metadata.eTag(),
+                    InlineChecksums.checksums(metadata.metadata()));
             return true;
         } catch (NoSuchKeyException e) {
+            metadataCache.putMissing(bucketName, key);
             return false;
         } catch (AwsServiceException e) {
             handleAwsServiceException(e, new Resource(resourceName));
@@ -155,19 +862,46 @@ public class S3Wagon extends AbstractWagon {
     @Override
     public List<String> getFileList(String destinationDirectory) throws TransferFailedException, ResourceDoesNotExistException,
             AuthorizationException {
+        long start = System.nanoTime();
+
+        try {
+            List<String> names = listDirectory(destinationDirectory);
+            metrics.getFileList.succeeded(start, 0);
+            return names;
+        } catch (ResourceDoesNotExistException e) {
+            metrics.getFileList.notFound(start);
+            throw e;
+        } catch (TransferFailedException | AuthorizationException | RuntimeException e) {
+            metrics.getFileList.failed(start);
+            throw e;
+        }
+    }
+
+    private List<String> listDirectory(String destinationDirectory) throws TransferFailedException, ResourceDoesNotExistException,
+            AuthorizationException {
 
         Repository repository = getRepository();
         String bucketName = repository.getHost();
         String key = createS3Key(destinationDirectory);
+        String prefix = key.isEmpty() || key.endsWith("/") ? key : key + "/";
 
         try {
-            ListObjectsResponse listObjectsResponse = s3Client.listObjects(r -> r.bucket(bucketName).prefix(key));
-            return listObjectsResponse.contents().stream().map(S3Object::key)
-                                      .map(k -> k
-                                              .replaceFirst(destinationDirectory, "")
-                                              .replaceFirst("^/", "")
-                                              .replaceAll("/.*$", ""))
-                                      .distinct().collect(Collectors.toList());
+            // with a delimiter S3 rolls everything below a subdirectory up into one common prefix, so the listing only
+            // has as many pages as there are direct children
+            List<String> names = new ArrayList<>();
+            for (ListObjectsV2Response page : s3Client.listObjectsV2Paginator(r -> r.bucket(bucketName).prefix(prefix).delimiter("/"))) {
+                for (CommonPrefix commonPrefix : page.commonPrefixes()) {
+                    names.add(commonPrefix.prefix().substring(prefix.length(), commonPrefix.prefix().length() - 1));
+                }
+                for (S3Object object : page.contents()) {
+                    if (object.key().length() > prefix.length()) {
+                        names.add(object.key().substring(prefix.length()));
+                        metadataCache.putExisting(bucketName, object.key(), object.size(), object.lastModified().toEpochMilli(),
+                                object.eTag());
+                    }
+                }
+            }
+            return names;
         } catch (NoSuchKeyException e) {
             throw new ResourceDoesNotExistException("Directory " + destinationDirectory + " does not exist in s3", e);
         } catch (AwsServiceException e) {
@@ -178,40 +912,56 @@ public class S3Wagon extends AbstractWagon {
         }
     }
 
+    /**
+     * A single conditional GET: S3 answers 304 Not Modified when the resource is not newer, instead of a HEAD followed by
+     * a GET when it is. With the metadata store enabled, a key checked recently is not checked again, and a key with a
+     * known ETag is revalidated with {@code If-None-Match}.
+     */
     @Override
     public boolean getIfNewer(String resourceName, File destination, long timestamp) throws TransferFailedException,
                                                                                             ResourceDoesNotExistException,
                                                                                             AuthorizationException {
-        Repository repository = getRepository();
-        String bucketName = repository.getHost();
-        String key = createS3Key(resourceName);
-
-        Resource resource = new Resource(resourceName);
+        long start = System.nanoTime();
 
         try {
-            HeadObjectResponse metadata = s3Client.headObject(r -> r.bucket(bucketName).key(key));
-            Instant lastModified = metadata.lastModified();
-            resource.setContentLength(metadata.contentLength());
-            resource.setLastModified(lastModified.toEpochMilli());
-
-            if (lastModified.toEpochMilli() > timestamp) {
-                logger.info("Resource is newer, downloading: {}", resourceName);
-                get(resourceName, destination);
-                return true;
-            } else {
-                logger.info("Resource is not newer: {}", resourceName);
+            boolean newer = getResourceIfNewer(resourceName, destination, timestamp);
+            metrics.getIfNewer.succeeded(start, newer ? destination.length() : 0);
+            return newer;
+        } catch (ResourceDoesNotExistException e) {
+            metrics.getIfNewer.notFound(start);
+            throw e;
+        } catch (TransferFailedException | AuthorizationException | RuntimeException e) {
+            metrics.getIfNewer.failed(start);
+            throw e;
+        }
+    }
+
+    private boolean getResourceIfNewer(String resourceName, File destination, long timestamp) throws TransferFailedException,
+                                                                                                     ResourceDoesNotExistException,
+                                                                                                     AuthorizationException {
+        String bucket = getRepository().getHost();
+        String key = createS3Key(resourceName);
+        String noneMatch = null;
+        writeBehindUploader.await(key);
+
+        MetadataStore.Entry stored = metadataStore.get(bucket, key);
+        if (stored != null && stored.lastModified() <= timestamp) {
+            if (metadataStore.isFresh(stored)) {
+                logger.info("Resource is not newer (checked recently): {}", resourceName);
                 return false;
             }
-        } catch (NoSuchKeyException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
-            throw new ResourceDoesNotExistException("Resource " + resourceName + " does not exist in the repository", e);
-        } catch (AwsServiceException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
-            handleAwsServiceException(e, resource);
+            noneMatch = stored.eTag();
+        }
+
+        // Last-Modified has whole seconds, so an object is newer than the timestamp if it is newer than its whole second
+        Instant modifiedSince = Instant.ofEpochMilli(timestamp).truncatedTo(ChronoUnit.SECONDS);
+
+        if (get(resourceName, destination, modifiedSince, noneMatch)) {
+            logger.info("Resource is newer, downloaded: {}", resourceName);
+            return true;
+        } else {
+            logger.info("Resource is not newer: {}", resourceName);
             return false;
-        } catch (SdkException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
-            throw new TransferFailedException("Error occurred while transferring resource " + resourceName, e);
         }
     }
 
@@ -0,0 +1,403 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of downloaded objects shared by all builds on a host, e.g. CI runners that each have their own local Maven
+ * repository. Objects are keyed by bucket, key and ETag, so a cached copy is only used while it is still the current
+ * version of the object.
+ * <p>
+ * Each object is stored once under {@code objects} and the ETag, size and MD5 of the latest version of each key under
+ * {@code refs}. Only objects whose content was verified are added: against the inline checksums, or against an ETag that
+ * is the MD5 of the content, as it is for objects not uploaded in parts.
+ * Objects are hard linked into and out of the cache when the cache and the destination are on the same file system, and
+ * copied otherwise. Files are only ever added by an atomic rename and a reader that loses a race with eviction simply
+ * misses, so using the cache needs no locking. Eviction, least recently used first, runs under a file lock when a wagon
+ * that added to the cache disconnects.
+ * <p>
+ * As with any hard link, a file in the cache and its copies in local repositories are the same file. Files are always
+ * replaced by a rename, never rewritten in place, so neither can change the other. To keep other tools from doing so the
+ * cached files are read-only, and a copy taken from the cache is checked against the size and MD5 in its ref anyway, as
+ * the cached version of a key is used by every build on the host.
+ */
+class SharedCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedCache.class);
+
+    static final String PATH_PROPERTY = "s3.wagon.shared.cache.path";
+    static final String SIZE_PROPERTY = "s3.wagon.shared.cache.size";
+
+    private static final long DEFAULT_SIZE = 10L << 30;
+    private static final long ORPHAN_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final Set<String> MD5 = Collections.singleton(ContentDigests.MD5);
+    private static final Object trimLock = new Object();
+
+    private final Path root;
+    private final long maxSize;
+    private final AtomicLong added = new AtomicLong();
+
+    SharedCache(Path root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    static SharedCache fromProperties() {
+        String path = WagonProperties.get(PATH_PROPERTY);
+        return new SharedCache(path != null ? Paths.get(path) : null, WagonProperties.getSize(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    boolean isEnabled() {
+        return root != null;
+    }
+
+    /**
+     * @return the ETag of the cached version of the key, or {@code null} if the key isn't cached
+     */
+    String eTag(String bucket, String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String keyHash = hash(bucket + '\0' + key);
+        try {
+            Ref ref = Ref.read(refs().resolve(keyHash));
+            return ref != null && Files.exists(object(keyHash, ref.eTag)) ? ref.eTag : null;
+        } catch (IOException e) {
+            logger.debug("Could not read the shared cache entry of {}/{}: {}", bucket, key, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Puts the cached version of the key at {@code destination}, replacing any file there.
+     *
+     * @return {@code false} if the version was evicted or replaced in the meantime
+     * @throws IOException if the cached file can't be read, or was changed since it was added
+     */
+    boolean copyTo(String bucket, String key, String eTag, Path destination) throws IOException {
+        String keyHash = hash(bucket + '\0' + key);
+        Ref ref = Ref.read(refs().resolve(keyHash));
+        if (ref == null || !ref.eTag.equals(eTag)) {
+            return false;
+        }
+
+        Path absolute = destination.toAbsolutePath();
+        Path temporary = DownloadTarget.createTemporary(absolute.getParent(), absolute.getFileName() + ".", ".s3tmp");
+
+        try {
+            if (!link(object(keyHash, eTag), temporary)) {
+                return false;
+            }
+            if (Files.size(temporary) != ref.size
+                    || !ref.md5.equals(md5(temporary))) {
+                throw new IOException("The cached file of " + bucket + "/" + key + " was changed");
+            }
+            move(temporary, absolute);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        touch(refs().resolve(keyHash));
+        return true;
+    }
+
+    /**
+     * Forgets a cached version of the key that couldn't be used, so the next download of the key replaces it.
+     */
+    void invalidate(String bucket, String key, String eTag) {
+        String keyHash = hash(bucket + '\0' + key);
+
+        try {
+            Files.deleteIfExists(refs().resolve(keyHash));
+            Files.deleteIfExists(object(keyHash, eTag));
+        } catch (IOException e) {
+            logger.debug("Could not remove the shared cache entry of {}/{}: {}", bucket, key, e.toString());
+        }
+    }
+
+    /**
+     * @return whether the ETag is the MD5 of the content, as it is for objects not uploaded in parts
+     */
+    static boolean isMd5(String eTag, String md5) {
+        return eTag != null && !eTag.contains("-") && eTag.replace("\"", "").equalsIgnoreCase(md5);
+    }
+
+    /**
+     * Adds a downloaded version of the key to the cache. Failing to do so doesn't fail the download. Only to be called
+     * with content that was verified, as every build on the host will use it.
+     *
+     * @param md5 the MD5 of the content, as lower case hex
+     */
+    void put(String bucket, String key, String eTag, Path file, String md5) {
+        if (!isEnabled() || eTag == null) {
+            return;
+        }
+
+        String keyHash = hash(bucket + '\0' + key);
+        Path ref = refs().resolve(keyHash);
+
+        try {
+            Files.createDirectories(objects());
+            Files.createDirectories(refs());
+
+            Ref previous = Ref.read(ref);
+            Path object = object(keyHash, eTag);
+            long size = Files.size(file);
+
+            if (!Files.exists(object)) {
+                Path temporary = DownloadTarget.createTemporary(objects(), keyHash + ".", ".tmp");
+                try {
+                    if (link(file, temporary)) {
+                        // a hard link shares the permissions, so this makes the downloaded file read-only too
+                        temporary.toFile().setReadOnly();
+                        move(temporary, object);
+                        added.addAndGet(size);
+                    }
+                } finally {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+
+            Path temporary = DownloadTarget.createTemporary(refs(), keyHash + ".", ".tmp");
+            try {
+                new Ref(eTag, size, md5).write(temporary);
+                move(temporary, ref);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+
+            if (previous != null && !previous.eTag.equals(eTag)) {
+                Files.deleteIfExists(object(keyHash, previous.eTag));
+            }
+        } catch (IOException e) {
+            logger.warn("Could not add {}/{} to the shared cache {}: {}", bucket, key, root, e.toString());
+        }
+    }
+
+    /**
+     * Evicts the least recently used objects until the cache is below its size again. Only done by wagons that added to
+     * the cache, and skipped if another build is already at it.
+     */
+    void trim() {
+        if (!isEnabled() || added.getAndSet(0) == 0) {
+            return;
+        }
+
+        synchronized (trimLock) {
+            try (FileChannel channel = FileChannel.open(root.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock lock = channel.tryLock()) {
+                if (lock != null) {
+                    evict();
+                }
+            } catch (IOException e) {
+                logger.warn("Could not trim the shared cache {}: {}", root, e.toString());
+            }
+        }
+    }
+
+    private void evict() throws IOException {
+        List<CachedObject> cached = new ArrayList<>();
+        long total = 0;
+        long orphanedBefore = System.currentTimeMillis() - ORPHAN_AGE_MILLIS;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects())) {
+            for (Path object : stream) {
+                String name = object.getFileName().toString();
+                Path ref = refs().resolve(name.substring(0, Math.max(0, name.indexOf('.'))));
+                long size;
+                long lastUsed;
+
+                try {
+                    size = Files.size(object);
+                    lastUsed = isCurrent(name, ref) ? Files.getLastModifiedTime(ref).toMillis() : Long.MIN_VALUE;
+
+                    // objects without a ref are superseded versions, or ones being added right now
+                    if (lastUsed == Long.MIN_VALUE && Files.getLastModifiedTime(object).toMillis() > orphanedBefore) {
+                        total += size;
+                        continue;
+                    }
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+
+                total += size;
+                cached.add(new CachedObject(object, ref, size, lastUsed));
+            }
+        }
+
+        if (total <= maxSize) {
+            return;
+        }
+
+        // leave some room, so the next build doesn't have to evict right away
+        long target = maxSize - maxSize / 10;
+        cached.sort(Comparator.comparingLong(object -> object.lastUsed));
+
+        for (CachedObject object : cached) {
+            if (total <= target) {
+                break;
+            }
+            if (object.lastUsed != Long.MIN_VALUE) {
+                Files.deleteIfExists(object.ref);
+            }
+            Files.deleteIfExists(object.path);
+            total -= object.size;
+        }
+
+        logger.debug("Trimmed the shared cache {} to {} bytes", root, total);
+    }
+
+    private boolean isCurrent(String objectName, Path ref) throws IOException {
+        Ref current = Ref.read(ref);
+        return current != null && objectName.equals(ref.getFileName() + "." + hash(current.eTag));
+    }
+
+    /**
+     * Hard links {@code target} as {@code link}, or copies it where that isn't possible.
+     *
+     * @return {@code false} if {@code target} doesn't exist
+     */
+    private static boolean link(Path target, Path link) throws IOException {
+        Files.deleteIfExists(link);
+
+        // copying a directory would just create an empty one
+        if (Files.isDirectory(target)) {
+            throw new IOException(target + " is not a file");
+        }
+
+        try {
+            Files.createLink(link, target);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. another file system
+        }
+
+        try {
+            Files.copy(target, link, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String md5(Path file) throws IOException {
+        try {
+            return ContentDigests.of(file, MD5).hex(ContentDigests.MD5);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only makes the entry more likely to be evicted
+        }
+    }
+
+    private Path objects() {
+        return root.resolve("objects");
+    }
+
+    private Path refs() {
+        return root.resolve("refs");
+    }
+
+    private Path object(String keyHash, String eTag) {
+        return objects().resolve(keyHash + "." + hash(eTag));
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * The version of a key the cache has, a line each for its ETag, size and MD5.
+     */
+    private static final class Ref {
+        private final String eTag;
+        private final long size;
+        private final String md5;
+
+        private Ref(String eTag, long size, String md5) {
+            this.eTag = eTag;
+            this.size = size;
+            this.md5 = md5;
+        }
+
+        /**
+         * @return the ref, or {@code null} if there is none or it is of an earlier version of the wagon
+         */
+        static Ref read(Path path) throws IOException {
+            try {
+                String[] lines = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).split("\n", -1);
+                return lines.length == 3 ? new Ref(lines[0], Long.parseLong(lines[1]), lines[2]) : null;
+            } catch (NoSuchFileException | NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void write(Path path) throws IOException {
+            Files.write(path, (eTag + "\n" + size + "\n" + md5).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final class CachedObject {
+        private final Path path;
+        private final Path ref;
+        private final long size;
+        private final long lastUsed;
+
+        private CachedObject(Path path, Path ref, long size, long lastUsed) {
+            this.path = path;
+            this.ref = ref;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
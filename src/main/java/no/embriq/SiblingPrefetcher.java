@@ -0,0 +1,384 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads the files Maven asks for right after a POM before it asks for them. Resolving {@code foo-1.0.pom} is
+ * nearly always followed by {@code foo-1.0.pom.sha1}, {@code foo-1.0.jar} and {@code foo-1.0.jar.sha1}, each a
+ * round-trip of its own, so once a POM is downloaded its siblings are fetched in the background into a staging
+ * directory, and the {@code get} that follows moves the file into place. A {@code get} that finds its prefetch still
+ * running waits for it rather than asking S3 again; one that finds it still queued cancels it and downloads as usual.
+ * <p>
+ * The main artifact's extension follows the POM's packaging, and a {@code pom} packaged project has none. Prefetches
+ * run on a few low priority threads and only as many are queued as can finish soon, so they don't compete with the
+ * downloads the build is waiting for. Objects larger than the maximum size are left for the build to download. A
+ * prefetch that isn't used within the time to live is cancelled and its file deleted, which also bounds how stale a
+ * staged file can be. Snapshot POMs that aren't timestamped change in place, so they don't trigger prefetches.
+ * <p>
+ * The wagon is instantiated per lookup and another instance may ask for the sibling, so the prefetches are shared by
+ * all wagons using the same client.
+ */
+class SiblingPrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(SiblingPrefetcher.class);
+
+    static final String ENABLED_PROPERTY = "s3.wagon.prefetch.enabled";
+    static final String CONCURRENCY_PROPERTY = "s3.wagon.prefetch.concurrency";
+    static final String TTL_PROPERTY = "s3.wagon.prefetch.ttl";
+    static final String MAX_SIZE_PROPERTY = "s3.wagon.prefetch.max.size";
+
+    private static final int QUEUED_PER_THREAD = 8;
+    // the packaging is near the top of a POM, and a large one isn't worth reading just for it
+    private static final int PACKAGING_SEARCH_LIMIT = 16 * 1024;
+    private static final Pattern PACKAGING = Pattern.compile("<packaging>\\s*([^<\\s]+)\\s*</packaging>");
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("s3-wagon-prefetch");
+    private static final SiblingPrefetcher DISABLED = new SiblingPrefetcher(null, 0, 0, 0);
+    // client -> its prefetcher, weak so that a closed client doesn't linger
+    private static final Map<S3Client, SiblingPrefetcher> shared = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final S3Client s3Client;
+    private final int concurrency;
+    private final long ttlMillis;
+    private final long maxSize;
+    private final Map<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong unused = new AtomicLong();
+    private ThreadPoolExecutor executor;
+    private Path staging;
+
+    SiblingPrefetcher(S3Client s3Client, int concurrency, long ttlMillis, long maxSize) {
+        if (concurrency < 0) {
+            throw new IllegalArgumentException("Number of prefetches must not be negative, was " + concurrency);
+        }
+
+        this.s3Client = s3Client;
+        this.concurrency = concurrency;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    static SiblingPrefetcher fromProperties(S3Client s3Client) {
+        if (!WagonProperties.getBoolean(ENABLED_PROPERTY, false)) {
+            return DISABLED;
+        }
+
+        return shared.computeIfAbsent(s3Client, client -> new SiblingPrefetcher(client,
+                WagonProperties.getInt(CONCURRENCY_PROPERTY, 2),
+                WagonProperties.getMillis(TTL_PROPERTY, TimeUnit.SECONDS.toMillis(30)),
+                WagonProperties.getSize(MAX_SIZE_PROPERTY, 16L << 20)));
+    }
+
+    boolean isEnabled() {
+        return concurrency > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * A prefetched object, moved to where the build asked for it.
+     */
+    static final class Staged {
+        final long lastModified;
+
+        Staged(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Queues the siblings of a POM that was just downloaded to {@code pom}.
+     *
+     * @param checksums whether to prefetch the {@code .sha1} files, which aren't downloaded when they are answered
+     *                  from object metadata
+     */
+    void prefetchSiblings(String bucket, String pomKey, Path pom, boolean checksums) {
+        if (!isEnabled() || !pomKey.endsWith(".pom") || pomKey.endsWith("-SNAPSHOT.pom")) {
+            return;
+        }
+
+        expire();
+        String base = pomKey.substring(0, pomKey.length() - ".pom".length());
+        List<String> siblings = new ArrayList<>();
+        if (checksums) {
+            siblings.add(base + ".pom.sha1");
+        }
+
+        String extension = artifactExtension(pom);
+        if (extension != null) {
+            siblings.add(base + "." + extension);
+            if (checksums) {
+                siblings.add(base + "." + extension + ".sha1");
+            }
+        }
+
+        for (String key : siblings) {
+            prefetch(bucket, key);
+        }
+    }
+
+    /**
+     * @return the extension of the main artifact of the POM, or {@code null} if it has none
+     */
+    static String artifactExtension(Path pom) {
+        byte[] head = new byte[PACKAGING_SEARCH_LIMIT];
+        int length = 0;
+
+        try (InputStream in = Files.newInputStream(pom)) {
+            for (int read; length < head.length && (read = in.read(head, length, head.length - length)) > 0; ) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return "jar";
+        }
+
+        Matcher matcher = PACKAGING.matcher(new String(head, 0, length, StandardCharsets.UTF_8));
+        String packaging = matcher.find() ? matcher.group(1) : "jar";
+        switch (packaging) {
+            case "pom":
+                return null;
+            case "war":
+            case "ear":
+            case "rar":
+                return packaging;
+            default:
+                // maven-plugin, bundle, ejb and most other packagings are jars
+                return "jar";
+        }
+    }
+
+    private void prefetch(String bucket, String key) {
+        String id = bucket + "/" + key;
+        Prefetch prefetch = new Prefetch(bucket, key);
+        if (prefetches.putIfAbsent(id, prefetch) != null) {
+            return;
+        }
+
+        try {
+            executor().execute(prefetch);
+        } catch (RejectedExecutionException e) {
+            // enough is queued already, the build will just download this one itself
+            prefetches.remove(id, prefetch);
+        } catch (IOException e) {
+            prefetches.remove(id, prefetch);
+            logger.debug("Could not create the prefetch staging directory: {}", e.toString());
+        }
+    }
+
+    private synchronized ThreadPoolExecutor executor() throws IOException {
+        if (executor == null) {
+            staging = Files.createTempDirectory("s3-wagon-prefetch");
+            staging.toFile().deleteOnExit();
+            executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(concurrency * QUEUED_PER_THREAD), runnable -> {
+                        Thread thread = threadFactory.newThread(runnable);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * Moves the prefetched object to {@code destination}, waiting for its download if it is running.
+     *
+     * @return {@code null} if the key wasn't prefetched, or the prefetch didn't get it, and it has to be downloaded
+     */
+    Staged take(String bucket, String key, Path destination) throws IOException, InterruptedException {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        expire();
+        Prefetch prefetch = prefetches.remove(bucket + "/" + key);
+        if (prefetch == null || prefetch.cancel()) {
+            return null;
+        }
+
+        Staged staged;
+        try {
+            staged = prefetch.result.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+
+        if (staged == null) {
+            return null;
+        }
+
+        try {
+            DownloadTarget.copy(prefetch.file, destination);
+        } finally {
+            Files.deleteIfExists(prefetch.file);
+        }
+        used.incrementAndGet();
+        return staged;
+    }
+
+    /**
+     * Drops the prefetch of a key that is being uploaded, as the staged file would be the old version.
+     */
+    void invalidate(String bucket, String key) {
+        if (isEnabled()) {
+            discard(prefetches.remove(bucket + "/" + key));
+        }
+    }
+
+    /**
+     * Cancels the prefetches that weren't used in time and deletes their files.
+     */
+    void expire() {
+        long expired = System.currentTimeMillis() - ttlMillis;
+        for (Iterator<Prefetch> iterator = prefetches.values().iterator(); iterator.hasNext(); ) {
+            Prefetch prefetch = iterator.next();
+            if (prefetch.queuedAt < expired) {
+                iterator.remove();
+                discard(prefetch);
+                logger.debug("Prefetch of {} was not used", prefetch.key);
+            }
+        }
+    }
+
+    private void discard(Prefetch prefetch) {
+        if (prefetch == null) {
+            return;
+        }
+
+        unused.incrementAndGet();
+        if (!prefetch.cancel()) {
+            prefetch.abort();
+            prefetch.result.whenComplete((staged, e) -> deleteQuietly(prefetch.file));
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("Could not delete prefetched file {}: {}", file, e.toString());
+        }
+    }
+
+    long usedCount() {
+        return used.get();
+    }
+
+    long unusedCount() {
+        return unused.get();
+    }
+
+    private final class Prefetch implements Runnable {
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        final String bucket;
+        final String key;
+        final long queuedAt = System.currentTimeMillis();
+        final CompletableFuture<Staged> result = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile Thread worker;
+        private volatile Path file;
+        private volatile ResponseInputStream<GetObjectResponse> response;
+        private volatile boolean aborted;
+
+        Prefetch(String bucket, String key) {
+            this.bucket = bucket;
+            this.key = key;
+        }
+
+        /**
+         * @return {@code true} if the prefetch hadn't started, and now never will
+         */
+        boolean cancel() {
+            if (state.compareAndSet(QUEUED, CANCELLED)) {
+                result.complete(null);
+                return true;
+            }
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Stops a running download. A blocked socket read doesn't notice an interrupt, so the response is aborted too.
+         */
+        void abort() {
+            aborted = true;
+            ResponseInputStream<GetObjectResponse> current = response;
+            if (current != null) {
+                current.abort();
+            }
+
+            Thread thread = worker;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+
+            worker = Thread.currentThread();
+            try {
+                file = DownloadTarget.createTemporary(staging, "prefetch.", ".s3tmp");
+                file.toFile().deleteOnExit();
+                result.complete(download());
+            } catch (IOException | RuntimeException e) {
+                // a 404 among them, the build gets to find out for itself
+                logger.debug("Prefetch of {} failed: {}", key, e.toString());
+                result.complete(null);
+            } finally {
+                worker = null;
+                // clears an interrupt meant for this prefetch, so it doesn't hit the next one
+                Thread.interrupted();
+                if (result.getNow(null) == null && file != null) {
+                    deleteQuietly(file);
+                }
+            }
+        }
+
+        private Staged download() throws IOException {
+            try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(r -> r.bucket(bucket).key(key))) {
+                response = in;
+                Long length = in.response().contentLength();
+                if (aborted || length != null && length > maxSize) {
+                    in.abort();
+                    return null;
+                }
+
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                return aborted ? null : new Staged(in.response().lastModified().toEpochMilli());
+            } finally {
+                response = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package no.embriq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Receives the bytes of a transfer as they pass through the wagon, so they can be forwarded to the Maven transfer
+ * listeners.
+ * <p>
+ * Listeners may compute checksums from these bytes (Maven Resolver does), so they must be reported exactly once and in
+ * file order, even when the transfer itself moves them concurrently and out of order.
+ */
+@FunctionalInterface
+interface TransferProgress {
+
+    TransferProgress NONE = (buffer, length) -> {
+    };
+
+    /**
+     * @param buffer the transferred bytes, starting at index 0
+     * @param length number of valid bytes in {@code buffer}
+     */
+    void transferred(byte[] buffer, int length);
+
+    /**
+     * Reports a region of a file that has already been transferred, by reading it back. Used by transfers that move
+     * the parts of a file concurrently, once every earlier part has been reported.
+     */
+    static void replay(FileChannel channel, long offset, long length, TransferProgress progress) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 64 * 1024));
+        long position = offset;
+        long end = offset + length;
+
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int n = channel.read(buffer, position);
+
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at " + position + ", expected " + end + " bytes");
+            }
+
+            progress.transferred(buffer.array(), n);
+            position += n;
+        }
+    }
+}
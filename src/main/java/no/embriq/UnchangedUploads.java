@@ -0,0 +1,56 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Recognizes uploads of content S3 already has, so a re-run of a deploy doesn't upload every byte again. Uploads carry
+ * the SHA-256 of their content as user metadata, and a file is only uploaded again if the object is missing, has
+ * another size or another SHA-256.
+ * <p>
+ * Checking costs a HEAD request and a read of the file, so it is off by default. Objects uploaded without the
+ * metadata, e.g. by an older version of the wagon, are uploaded once more and have it from then on.
+ */
+class UnchangedUploads {
+
+    private static final Logger logger = LoggerFactory.getLogger(UnchangedUploads.class);
+
+    static final String ENABLED_PROPERTY = "s3.wagon.upload.skip.unchanged";
+    static final String SHA256_METADATA = "sha256";
+
+    private final S3Client s3Client;
+    private final boolean enabled;
+
+    UnchangedUploads(S3Client s3Client, boolean enabled) {
+        this.s3Client = s3Client;
+        this.enabled = enabled;
+    }
+
+    static UnchangedUploads fromProperties(S3Client s3Client) {
+        return new UnchangedUploads(s3Client, WagonProperties.getBoolean(ENABLED_PROPERTY, false));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return {@code true} if the object exists with exactly this content
+     */
+    boolean isUnchanged(String bucket, String key, long length, String sha256) {
+        try {
+            HeadObjectResponse metadata = s3Client.headObject(r -> r.bucket(bucket).key(key));
+            return metadata.contentLength() == length && sha256.equals(metadata.metadata().get(SHA256_METADATA));
+        } catch (NoSuchKeyException e) {
+            return false;
+        } catch (SdkException e) {
+            // e.g. a deploy user that may put but not get objects, the upload tells if anything is really wrong
+            logger.debug("Could not check whether {} is unchanged: {}", key, e.toString());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package no.embriq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Counts what the wagon's operations cost, per repository: how often they ran, failed or found nothing, how long they
+ * took and how many bytes they moved. Retried and throttled S3 requests are counted per bucket, as that's what S3
+ * throttles by.
+ * <p>
+ * The counters are {@link LongAdder}s and the latencies go into a histogram with fixed buckets, so recording neither
+ * locks nor allocates. When the JVM exits the metrics are logged as a summary and written to a file, as JSON or in the
+ * Prometheus text format. Nothing is recorded unless one of those is configured: a daemon like mvnd runs many builds
+ * before it exits, and would otherwise count them all into metrics nobody reads.
+ */
+final class WagonMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(WagonMetrics.class);
+
+    static final String ENABLED_PROPERTY = "s3.wagon.metrics.enabled";
+    static final String SUMMARY_PROPERTY = "s3.wagon.metrics.summary";
+    static final String FILE_PROPERTY = "s3.wagon.metrics.file";
+    static final String FORMAT_PROPERTY = "s3.wagon.metrics.format";
+
+    // upper bounds of the latency histogram buckets, the last bucket has no bound
+    private static final long[] BUCKET_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    // repository URL -> metrics
+    private static final Map<String, WagonMetrics> repositories = new ConcurrentHashMap<>();
+    // bucket -> metrics
+    private static final Map<String, Requests> buckets = new ConcurrentHashMap<>();
+    private static final AtomicBoolean reportAtExit = new AtomicBoolean();
+    private static final WagonMetrics DISABLED = new WagonMetrics(false);
+    private static final Requests DISABLED_REQUESTS = new Requests(false);
+
+    final Operation get;
+    final Operation put;
+    final Operation resourceExists;
+    final Operation getIfNewer;
+    final Operation getFileList;
+
+    private WagonMetrics(boolean enabled) {
+        get = new Operation("get", enabled);
+        put = new Operation("put", enabled);
+        resourceExists = new Operation("resourceExists", enabled);
+        getIfNewer = new Operation("getIfNewer", enabled);
+        getFileList = new Operation("getFileList", enabled);
+    }
+
+    static WagonMetrics forRepository(String url) {
+        if (!isEnabled()) {
+            return DISABLED;
+        }
+
+        if (reportAtExit.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(WagonMetrics::report, "s3-wagon-metrics"));
+        }
+        return repositories.computeIfAbsent(url, u -> new WagonMetrics(true));
+    }
+
+    static Requests forBucket(String bucket) {
+        if (!isEnabled()) {
+            return DISABLED_REQUESTS;
+        }
+        return buckets.computeIfAbsent(bucket, b -> new Requests(true));
+    }
+
+    private static boolean isEnabled() {
+        boolean reported = WagonProperties.getBoolean(SUMMARY_PROPERTY, false) || WagonProperties.get(FILE_PROPERTY) != null;
+        return WagonProperties.getBoolean(ENABLED_PROPERTY, reported);
+    }
+
+    private Operation[] operations() {
+        return new Operation[]{get, put, resourceExists, getIfNewer, getFileList};
+    }
+
+    /**
+     * Counts for one kind of operation. Each call records the time since {@code startNanos}, from
+     * {@link System#nanoTime()}.
+     */
+    static final class Operation {
+
+        private final String name;
+        private final boolean enabled;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder notFound = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder succeededNanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_MILLIS.length + 1);
+
+        private Operation(String name, boolean enabled) {
+            this.name = name;
+            this.enabled = enabled;
+        }
+
+        void succeeded(long startNanos, long transferred) {
+            if (enabled) {
+                long elapsed = record(startNanos);
+                succeededNanos.add(elapsed);
+                bytes.add(transferred);
+            }
+        }
+
+        void notFound(long startNanos) {
+            if (enabled) {
+                record(startNanos);
+                notFound.increment();
+            }
+        }
+
+        void failed(long startNanos) {
+            if (enabled) {
+                record(startNanos);
+                failed.increment();
+            }
+        }
+
+        private long record(long startNanos) {
+            long elapsed = System.nanoTime() - startNanos;
+            long millis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+            int bucket = 0;
+            while (bucket < BUCKET_MILLIS.length && millis > BUCKET_MILLIS[bucket]) {
+                bucket++;
+            }
+
+            histogram.incrementAndGet(bucket);
+            count.increment();
+            nanos.add(elapsed);
+            return elapsed;
+        }
+
+        /**
+         * @return the upper bound in milliseconds of the bucket the percentile falls into, {@code -1} if it's beyond
+         * the last bound or there is nothing recorded
+         */
+        long percentileMillis(double percentile) {
+            long total = 0;
+            for (int i = 0; i < histogram.length(); i++) {
+                total += histogram.get(i);
+            }
+
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                seen += histogram.get(i);
+                if (total > 0 && seen >= rank) {
+                    return BUCKET_MILLIS[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return bytes per second while the successful operations ran
+         */
+        double throughput() {
+            long elapsed = succeededNanos.sum();
+            return elapsed == 0 ? 0 : bytes.sum() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+    }
+
+    /**
+     * Counts for the S3 requests to one bucket, from all repositories in it.
+     */
+    static final class Requests {
+
+        private final boolean enabled;
+        private final LongAdder retried = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+
+        private Requests(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        void retried() {
+            if (enabled) {
+                retried.increment();
+            }
+        }
+
+        void throttled() {
+            if (enabled) {
+                throttled.increment();
+            }
+        }
+    }
+
+    private static void report() {
+        if (repositories.isEmpty()) {
+            return;
+        }
+
+        if (WagonProperties.getBoolean(SUMMARY_PROPERTY, false)) {
+            logger.info("{}", summary());
+        }
+
+        String file = WagonProperties.get(FILE_PROPERTY);
+        if (file != null) {
+            Path path = Paths.get(file);
+            String format = WagonProperties.get(FORMAT_PROPERTY);
+            boolean prometheus = format != null ? "prometheus".equalsIgnoreCase(format) : !file.endsWith(".json");
+
+            try {
+                if (path.toAbsolutePath().getParent() != null) {
+                    Files.createDirectories(path.toAbsolutePath().getParent());
+                }
+                Files.write(path, (prometheus ? prometheus() : json()).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                logger.warn("Could not write the S3 wagon metrics to {}: {}", path, e.toString());
+            }
+        }
+    }
+
+    static String summary() {
+        StringBuilder summary = new StringBuilder("S3 wagon metrics");
+
+        for (Map.Entry<String, WagonMetrics> repository : new TreeMap<>(repositories).entrySet()) {
+            summary.append(String.format(Locale.ROOT, "%n%s%n  %-15s %8s %7s %7s %9s %9s %9s %12s %10s", repository.getKey(),
+                    "operation", "count", "failed", "404", "p50 ms", "p95 ms", "p99 ms", "bytes", "MB/s"));
+
+            for (Operation operation : repository.getValue().operations()) {
+                if (operation.count.sum() == 0) {
+                    continue;
+                }
+                summary.append(String.format(Locale.ROOT, "%n  %-15s %8d %7d %7d %9s %9s %9s %12d %10.1f", operation.name,
+                        operation.count.sum(), operation.failed.sum(), operation.notFound.sum(),
+                        bound(operation.percentileMillis(0.5)), bound(operation.percentileMillis(0.95)),
+                        bound(operation.percentileMillis(0.99)), operation.bytes.sum(), operation.throughput() / (1024 * 1024)));
+            }
+        }
+
+        for (Map.Entry<String, Requests> bucket : new TreeMap<>(buckets).entrySet()) {
+            summary.append(String.format(Locale.ROOT, "%nRequests to bucket %s: %d retried, %d throttled", bucket.getKey(),
+                    bucket.getValue().retried.sum(), bucket.getValue().throttled.sum()));
+        }
+        return summary.toString();
+    }
+
+    private static String bound(long millis) {
+        return millis < 0 ? ">" + BUCKET_MILLIS[BUCKET_MILLIS.length - 1] : "<=" + millis;
+    }
+
+    static String json() {
+        StringBuilder json = new StringBuilder("{\"repositories\":[");
+        String separator = "";
+
+        for (Map.Entry<String, WagonMetrics> repository : new TreeMap<>(repositories).entrySet()) {
+            json.append(separator).append("{\"url\":").append(quote(repository.getKey())).append(",\"operations\":{");
+            separator = ",";
+
+            String operationSeparator = "";
+            for (Operation operation : repository.getValue().operations()) {
+                json.append(operationSeparator).append(quote(operation.name)).append(":{")
+                    .append("\"count\":").append(operation.count.sum())
+                    .append(",\"failed\":").append(operation.failed.sum())
+                    .append(",\"notFound\":").append(operation.notFound.sum())
+                    .append(",\"bytes\":").append(operation.bytes.sum())
+                    .append(",\"seconds\":").append(seconds(operation.nanos.sum()))
+                    .append(",\"bytesPerSecond\":").append(String.format(Locale.ROOT, "%.0f", operation.throughput()))
+                    .append(",\"histogram\":{");
+                for (int i = 0; i < operation.histogram.length(); i++) {
+                    json.append(i == 0 ? "" : ",").append(quote(i < BUCKET_MILLIS.length ? "le" + BUCKET_MILLIS[i] + "ms" : "inf"))
+                        .append(':').append(operation.histogram.get(i));
+                }
+                json.append("}}");
+                operationSeparator = ",";
+            }
+            json.append("}}");
+        }
+
+        json.append("],\"buckets\":[");
+        separator = "";
+        for (Map.Entry<String, Requests> bucket : new TreeMap<>(buckets).entrySet()) {
+            json.append(separator).append("{\"bucket\":").append(quote(bucket.getKey()))
+                .append(",\"retried\":").append(bucket.getValue().retried.sum())
+                .append(",\"throttled\":").append(bucket.getValue().throttled.sum()).append('}');
+            separator = ",";
+        }
+        return json.append("]}\n").toString();
+    }
+
+    static String prometheus() {
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP s3_wagon_operation_seconds Duration of wagon operations\n")
+            .append("# TYPE s3_wagon_operation_seconds histogram\n");
+        forEachOperation((labels, operation) -> {
+            long cumulative = 0;
+            for (int i = 0; i < operation.histogram.length(); i++) {
+                cumulative += operation.histogram.get(i);
+                String le = i < BUCKET_MILLIS.length ? seconds(TimeUnit.MILLISECONDS.toNanos(BUCKET_MILLIS[i])) : "+Inf";
+                text.append("s3_wagon_operation_seconds_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            text.append("s3_wagon_operation_seconds_sum{").append(labels).append("} ").append(seconds(operation.nanos.sum())).append('\n');
+            text.append("s3_wagon_operation_seconds_count{").append(labels).append("} ").append(operation.count.sum()).append('\n');
+        });
+
+        counter(text, "s3_wagon_operation_failures_total", "Wagon operations that failed", operation -> operation.failed);
+        counter(text, "s3_wagon_operation_not_found_total", "Wagon operations for resources that don't exist", operation -> operation.notFound);
+        counter(text, "s3_wagon_operation_bytes_total", "Bytes transferred by wagon operations", operation -> operation.bytes);
+
+        text.append("# HELP s3_wagon_request_retries_total S3 requests retried after a failure\n")
+            .append("# TYPE s3_wagon_request_retries_total counter\n");
+        buckets.forEach((bucket, requests) -> text.append("s3_wagon_request_retries_total{bucket=").append(quote(bucket)).append("} ")
+                                                  .append(requests.retried.sum()).append('\n'));
+        text.append("# HELP s3_wagon_request_throttled_total S3 requests answered with SlowDown\n")
+            .append("# TYPE s3_wagon_request_throttled_total counter\n");
+        buckets.forEach((bucket, requests) -> text.append("s3_wagon_request_throttled_total{bucket=").append(quote(bucket)).append("} ")
+                                                  .append(requests.throttled.sum()).append('\n'));
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, Function<Operation, LongAdder> value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(" counter\n");
+        forEachOperation((labels, operation) -> text.append(name).append('{').append(labels).append("} ")
+                                                    .append(value.apply(operation).sum()).append('\n'));
+    }
+
+    private static void forEachOperation(BiConsumer<String, Operation> consumer) {
+        for (Map.Entry<String, WagonMetrics> repository : new TreeMap<>(repositories).entrySet()) {
+            for (Operation operation : repository.getValue().operations()) {
+                consumer.accept("repository=" + quote(repository.getKey()) + ",operation=" + quote(operation.name), operation);
+            }
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+}
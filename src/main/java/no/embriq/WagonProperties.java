@@ -0,0 +1,128 @@
+package no.embriq;
+
+import org.codehaus.plexus.util.StringUtils;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings are read from a system property first, then from the environment. The environment variable name is the
+ * property name in upper case with dots replaced by underscores, e.g. {@code s3.wagon.endpoint} and
+ * {@code S3_WAGON_ENDPOINT}.
+ */
+final class WagonProperties {
+
+    private WagonProperties() {
+    }
+
+    static String get(String property) {
+        String value = System.getProperty(property);
+
+        if (StringUtils.isEmpty(value)) {
+            value = System.getenv(property.toUpperCase(Locale.ROOT).replace('.', '_').replace('-', '_'));
+        }
+
+        return StringUtils.isEmpty(value) ? null : value.trim();
+    }
+
+    static int getInt(String property, int defaultValue) {
+        String value = get(property);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + property + ": " + value, e);
+        }
+    }
+
+    static double getDouble(String property, double defaultValue) {
+        String value = get(property);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + property + ": " + value, e);
+        }
+    }
+
+    static boolean getBoolean(String property, boolean defaultValue) {
+        String value = get(property);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Sizes are given in bytes, optionally with a {@code k}, {@code m} or {@code g} suffix, e.g. {@code 16m}.
+     */
+    static long getSize(String property, long defaultValue) {
+        String value = get(property);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        String number = value.toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+
+        switch (number.charAt(number.length() - 1)) {
+            case 'g':
+                multiplier *= 1024;
+                // fall through
+            case 'm':
+                multiplier *= 1024;
+                // fall through
+            case 'k':
+                multiplier *= 1024;
+                number = number.substring(0, number.length() - 1).trim();
+                break;
+            default:
+                break;
+        }
+
+        try {
+            return Long.parseLong(number) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + property + ": " + value, e);
+        }
+    }
+
+    /**
+     * Durations are given in seconds, or with a {@code ms}, {@code s}, {@code m} or {@code h} suffix, e.g. {@code 5m}.
+     */
+    static long getMillis(String property, long defaultMillis) {
+        String value = get(property);
+
+        if (value == null) {
+            return defaultMillis;
+        }
+
+        String number = value.toLowerCase(Locale.ROOT);
+        TimeUnit unit = TimeUnit.SECONDS;
+
+        if (number.endsWith("ms")) {
+            unit = TimeUnit.MILLISECONDS;
+            number = number.substring(0, number.length() - 2);
+        } else if (number.endsWith("s")) {
+            number = number.substring(0, number.length() - 1);
+        } else if (number.endsWith("m")) {
+            unit = TimeUnit.MINUTES;
+            number = number.substring(0, number.length() - 1);
+        } else if (number.endsWith("h")) {
+            unit = TimeUnit.HOURS;
+            number = number.substring(0, number.length() - 1);
+        }
+
+        try {
+            return unit.toMillis(Long.parseLong(number.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + property + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package no.embriq;
+
+import org.apache.maven.wagon.TransferFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads files in the background, so a deploy doesn't wait for one upload before starting the next. Each file is
+ * snapshotted when it is queued, by a hard link where possible, because Maven deletes the temporary files it deploys
+ * checksums and metadata from as soon as {@code put} returns.
+ * <p>
+ * Maven looks up a new wagon for every transfer, so the uploads are queued per client and bucket, shared by all the
+ * wagons connected to the bucket. Failures are collected and reported by the next {@code put} of any of them, at the
+ * latest by {@link #flush()}, which the wagon calls before uploading repository metadata. Metadata is what makes a
+ * deployed artifact visible, so it is never uploaded before the artifacts it describes, whichever wagon uploaded them.
+ * A wagon that disconnects waits for every upload, and the last one to disconnect reports the failures no
+ * {@code put} did.
+ */
+class WriteBehindUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindUploader.class);
+
+    static final String ENABLED_PROPERTY = "s3.wagon.deploy.async";
+    static final String CONCURRENCY_PROPERTY = "s3.wagon.deploy.async.concurrency";
+    static final String MAX_PENDING_PROPERTY = "s3.wagon.deploy.async.pending";
+
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("s3-wagon-deploy");
+    // client -> bucket -> its queue, weak so that a closed client doesn't linger
+    private static final Map<S3Client, Map<String, Queue>> queues = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final S3Client s3Client;
+    private final boolean enabled;
+    private final int concurrency;
+    private final int maxPending;
+    private Queue queue;
+
+    WriteBehindUploader(S3Client s3Client, boolean enabled, int concurrency, int maxPending) {
+        this.s3Client = s3Client;
+        this.enabled = enabled;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    static WriteBehindUploader fromProperties(S3Client s3Client) {
+        return new WriteBehindUploader(s3Client, WagonProperties.getBoolean(ENABLED_PROPERTY, false),
+                WagonProperties.getInt(CONCURRENCY_PROPERTY, 8),
+                WagonProperties.getInt(MAX_PENDING_PROPERTY, 64));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    @FunctionalInterface
+    interface Upload {
+        void upload(Path snapshot) throws Exception;
+    }
+
+    /**
+     * Joins the queue of the bucket. Its concurrency and maximum of pending uploads are those of the first wagon.
+     */
+    void open(String bucket) {
+        if (!enabled || queue != null) {
+            return;
+        }
+
+        Map<String, Queue> buckets = queues.computeIfAbsent(s3Client, c -> new HashMap<>());
+        synchronized (buckets) {
+            queue = buckets.computeIfAbsent(bucket, b -> new Queue(concurrency, maxPending));
+            queue.open();
+        }
+    }
+
+    /**
+     * Takes a snapshot of {@code file} and queues its upload. Blocks while the maximum number of uploads is pending.
+     *
+     * @throws TransferFailedException if an earlier upload failed, so a broken deploy stops early
+     */
+    void submit(String key, Path file, Upload upload) throws TransferFailedException, IOException {
+        if (queue == null) {
+            throw new IllegalStateException("Not connected to a bucket");
+        }
+        queue.submit(key, file, upload);
+    }
+
+    /**
+     * Waits for a pending upload of the key, if any, so a read sees what was written. Its failure, if it failed, is left
+     * for a {@code put} to report.
+     */
+    void await(String key) {
+        if (queue != null) {
+            queue.await(key);
+        }
+    }
+
+    /**
+     * Waits for every pending upload to the bucket.
+     *
+     * @throws TransferFailedException if any of them failed, with the other failures suppressed
+     */
+    void flush() throws TransferFailedException {
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Waits for every pending upload to the bucket, and leaves the queue.
+     *
+     * @throws TransferFailedException if this was the last wagon of the queue, and uploads failed that no {@code put}
+     *                                 reported
+     */
+    void close() throws TransferFailedException {
+        if (queue != null) {
+            Queue closing = queue;
+            queue = null;
+            closing.close();
+        }
+    }
+
+    private static final class Queue {
+
+        private final int concurrency;
+        private final Semaphore pending;
+        private final Map<String, Future<?>> uploads = new HashMap<>();
+        private final List<TransferFailedException> failures = new ArrayList<>();
+        private final AtomicLong snapshots = new AtomicLong();
+        private int wagons;
+        private ExecutorService executor;
+        private Path staging;
+
+        Queue(int concurrency, int maxPending) {
+            this.concurrency = concurrency;
+            this.pending = new Semaphore(maxPending);
+        }
+
+        synchronized void open() {
+            wagons++;
+        }
+
+        void submit(String key, Path file, Upload upload) throws TransferFailedException, IOException {
+            throwFailures();
+            await(key);
+
+            try {
+                pending.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransferFailedException("Interrupted while waiting to queue the upload of " + key, e);
+            }
+
+            Path snapshot;
+            try {
+                snapshot = snapshot(file);
+            } catch (IOException | RuntimeException e) {
+                pending.release();
+                throw e;
+            }
+
+            synchronized (this) {
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(concurrency, threadFactory);
+                }
+
+                uploads.values().removeIf(Future::isDone);
+                uploads.put(key, executor.submit(() -> {
+                    try {
+                        upload.upload(snapshot);
+                    } catch (Exception e) {
+                        logger.debug("Background upload of {} failed", key, e);
+                        synchronized (failures) {
+                            failures.add(new TransferFailedException("Background upload of " + key + " failed: " + e.getMessage(), e));
+                        }
+                    } finally {
+                        deleteQuietly(snapshot);
+                        pending.release();
+                    }
+                }));
+            }
+        }
+
+        void await(String key) {
+            Future<?> upload;
+            synchronized (this) {
+                upload = uploads.get(key);
+            }
+
+            if (upload != null) {
+                waitFor(upload);
+            }
+        }
+
+        void flush() throws TransferFailedException {
+            awaitAll();
+            throwFailures();
+        }
+
+        void close() throws TransferFailedException {
+            awaitAll();
+
+            synchronized (this) {
+                if (--wagons > 0) {
+                    return;
+                }
+
+                if (executor != null) {
+                    executor.shutdown();
+                    executor = null;
+                }
+                if (staging != null) {
+                    deleteQuietly(staging);
+                    staging = null;
+                }
+            }
+
+            throwFailures();
+        }
+
+        private void awaitAll() {
+            List<Future<?>> waiting;
+            synchronized (this) {
+                waiting = new ArrayList<>(uploads.values());
+            }
+
+            waiting.forEach(WriteBehindUploader::waitFor);
+        }
+
+        private void throwFailures() throws TransferFailedException {
+            synchronized (failures) {
+                if (failures.isEmpty()) {
+                    return;
+                }
+
+                TransferFailedException first = failures.get(0);
+                failures.subList(1, failures.size()).forEach(first::addSuppressed);
+                failures.clear();
+                throw first;
+            }
+        }
+
+        private Path snapshot(Path file) throws IOException {
+            Path directory;
+            synchronized (this) {
+                if (staging == null) {
+                    staging = Files.createTempDirectory("s3-wagon-deploy");
+                }
+                directory = staging;
+            }
+
+            Path snapshot = directory.resolve(snapshots.incrementAndGet() + "-" + file.getFileName());
+            try {
+                Files.createLink(snapshot, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                // e.g. another file system
+                Files.copy(file, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    private static void waitFor(Future<?> upload) {
+        try {
+            upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // failures are recorded by the upload itself
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.debug("Could not delete {}: {}", path, e.toString());
+        }
+    }
+}
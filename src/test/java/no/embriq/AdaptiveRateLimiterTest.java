@@ -0,0 +1,116 @@
+package no.embriq;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AdaptiveRateLimiterTest {
+
+    @Test
+    public void limitsNothingUntilThrottled() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 0, 5, 0.5);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire();
+        }
+
+        assertThat(limiter.rate()).isInfinite();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(500);
+    }
+
+    @Test
+    public void spacesRequestsAtTheMaximumRate() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 10, 5, 0.5);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            limiter.acquire();
+        }
+
+        // the first request leaves at once, the other five a tenth of a second apart
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(450);
+    }
+
+    @Test
+    public void cutsTheRateToAFractionOfTheRateRequestsWereSentAt() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 0, 5, 0.5);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+        }
+
+        limiter.throttled();
+
+        // 20 requests in less than the shortest window of 100 ms is at most 200 requests/s
+        assertThat(limiter.rate()).isBetween(0.5, 100.0);
+    }
+
+    @Test
+    public void countsABurstOfThrottledRequestsAsOne() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 0, 5, 0.5);
+        limiter.acquire();
+
+        limiter.throttled();
+        double rate = limiter.rate();
+        limiter.throttled();
+        limiter.throttled();
+
+        assertThat(limiter.rate()).isEqualTo(rate);
+    }
+
+    @Test
+    public void raisesTheRateWithEverySuccessfulRequest() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 0, 5, 0.5);
+        limiter.acquire();
+        limiter.throttled();
+        double rate = limiter.rate();
+
+        limiter.succeeded(-1);
+
+        assertThat(limiter.rate()).isEqualTo(rate + 5 / rate);
+    }
+
+    @Test
+    public void holdsTheIncreaseBackWhileRequestsAreSlow() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 0, 5, 0.5);
+        limiter.acquire();
+        limiter.throttled();
+        limiter.succeeded(TimeUnit.MILLISECONDS.toNanos(10));
+        double rate = limiter.rate();
+
+        limiter.succeeded(TimeUnit.MILLISECONDS.toNanos(100));
+
+        assertThat(limiter.rate()).isEqualTo(rate);
+    }
+
+    @Test
+    public void neverRaisesTheRateAboveTheMaximum() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(true, 10, 5, 0.5);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.succeeded(-1);
+        }
+
+        assertThat(limiter.rate()).isEqualTo(10);
+    }
+
+    @Test
+    public void keepsTheRateWhenNotAdaptive() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(false, 10, 5, 0.5);
+        limiter.acquire();
+
+        limiter.throttled();
+
+        assertThat(limiter.rate()).isEqualTo(10);
+    }
+
+    @Test
+    public void rejectsInvalidSettings() {
+        assertThatThrownBy(() -> new AdaptiveRateLimiter(true, -1, 5, 0.5)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AdaptiveRateLimiter(true, 0, 0, 0.5)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AdaptiveRateLimiter(true, 0, 5, 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,121 @@
+package no.embriq;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.SdkSystemSetting;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachedCredentialsProviderTest {
+
+    private Path tempDir;
+    private Path cacheDir;
+    private Path tokenFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName());
+        cacheDir = tempDir.resolve("auth");
+        tokenFile = tempDir.resolve("token");
+        System.setProperty(SdkSystemSetting.AWS_ROLE_ARN.property(), "arn:aws:iam::123456789012:role/deploy");
+        System.setProperty(SdkSystemSetting.AWS_WEB_IDENTITY_TOKEN_FILE.property(), tokenFile.toString());
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty(SdkSystemSetting.AWS_ROLE_ARN.property());
+        System.clearProperty(SdkSystemSetting.AWS_WEB_IDENTITY_TOKEN_FILE.property());
+        FileUtils.deleteQuietly(tempDir.toFile());
+    }
+
+    @Test
+    public void reusesTheCredentialsOfTheSameToken() throws IOException {
+        writeToken("token of job 1");
+        Sts sts = new Sts();
+
+        new CachedCredentialsProvider(sts, cacheDir).resolveCredentials();
+        AwsCredentials credentials = new CachedCredentialsProvider(sts, cacheDir).resolveCredentials();
+
+        assertThat(sts.issued.get()).isEqualTo(1);
+        assertThat(credentials.accessKeyId()).isEqualTo("key-1");
+    }
+
+    @Test
+    public void keepsTheCredentialsOfDifferentTokensInTheSameFileApart() throws IOException {
+        Sts sts = new Sts();
+
+        writeToken("token of job 1 in repository a");
+        AwsCredentials first = new CachedCredentialsProvider(sts, cacheDir).resolveCredentials();
+        writeToken("token of job 2 in repository b");
+        AwsCredentials second = new CachedCredentialsProvider(sts, cacheDir).resolveCredentials();
+
+        assertThat(sts.issued.get()).isEqualTo(2);
+        assertThat(first.accessKeyId()).isEqualTo("key-1");
+        assertThat(second.accessKeyId()).isEqualTo("key-2");
+    }
+
+    @Test
+    public void neverCachesCredentialsWithoutAnExpiration() throws IOException {
+        writeToken("token");
+        AwsCredentialsProvider accessKeys = () -> AwsBasicCredentials.create("access-key", "secret-key");
+
+        new CachedCredentialsProvider(accessKeys, cacheDir).resolveCredentials();
+
+        assertThat(cacheDir).doesNotExist();
+    }
+
+    @Test
+    public void removesTheFilesOfExpiredCredentials() throws IOException {
+        writeToken("old token");
+        new CachedCredentialsProvider(new Sts(), cacheDir).resolveCredentials();
+        Path old;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            old = files.findFirst().orElseThrow(IllegalStateException::new);
+        }
+        Files.setLastModifiedTime(old, FileTime.from(Instant.now().minus(Duration.ofDays(1))));
+
+        writeToken("new token");
+        new CachedCredentialsProvider(new Sts(), cacheDir).resolveCredentials();
+
+        assertThat(old).doesNotExist();
+        assertThat(cacheDir.toFile().list()).hasSize(1);
+    }
+
+    private void writeToken(String token) throws IOException {
+        Files.write(tokenFile, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Issues new session credentials, valid for an hour, on every call.
+     */
+    private static class Sts implements AwsCredentialsProvider {
+        private final AtomicInteger issued = new AtomicInteger();
+
+        @Override
+        public AwsCredentials resolveCredentials() {
+            int number = issued.incrementAndGet();
+            return AwsSessionCredentials.builder()
+                                        .accessKeyId("key-" + number)
+                                        .secretAccessKey("secret-" + number)
+                                        .sessionToken("session-" + number)
+                                        .expirationTime(Instant.now().plus(Duration.ofHours(1)))
+                                        .build();
+        }
+    }
+}
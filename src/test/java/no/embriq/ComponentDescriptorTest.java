@@ -0,0 +1,38 @@
+package no.embriq;
+
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ComponentDescriptorTest {
+
+    /**
+     * Maven would otherwise hand one wagon to all the threads of a parallel build.
+     */
+    @Test
+    public void instantiatesTheWagonPerLookup() throws Exception {
+        Document descriptor;
+        try (InputStream in = getClass().getResourceAsStream("/META-INF/plexus/components.xml")) {
+            descriptor = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        }
+
+        NodeList components = descriptor.getElementsByTagName("component");
+        assertThat(components.getLength()).isEqualTo(1);
+
+        Element component = (Element) components.item(0);
+        assertThat(text(component, "role")).isEqualTo("org.apache.maven.wagon.Wagon");
+        assertThat(text(component, "role-hint")).isEqualTo("s3");
+        assertThat(text(component, "implementation")).isEqualTo(S3Wagon.class.getName());
+        assertThat(text(component, "instantiation-strategy")).isEqualTo("per-lookup");
+    }
+
+    private static String text(Element element, String name) {
+        return element.getElementsByTagName(name).item(0).getTextContent().trim();
+    }
+}
@@ -0,0 +1,81 @@
+package no.embriq;
+
+import no.embriq.helpers.LocalS3Server;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.net.URI;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ConnectionPrewarmerTest {
+
+    private static final String BUCKET = "bucket";
+
+    private LocalS3Server server;
+    private S3Client s3Client;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = LocalS3Server.start();
+        server.createBucket(BUCKET);
+        // a client of its own, as a client is only prewarmed once per bucket
+        s3Client = server.client();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        s3Client.close();
+        server.close();
+    }
+
+    @Test
+    public void opensTheConnectionsAtTheSameTime() {
+        server.latency(300);
+
+        long start = System.nanoTime();
+        new ConnectionPrewarmer(s3Client, 4).prewarm(BUCKET);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertThat(server.requestCount("HEAD")).isEqualTo(4);
+        assertThat(elapsedMillis).isLessThan(4 * 300);
+    }
+
+    @Test
+    public void prewarmsABucketOnce() {
+        new ConnectionPrewarmer(s3Client, 2).prewarm(BUCKET);
+        new ConnectionPrewarmer(s3Client, 2).prewarm(BUCKET);
+
+        assertThat(server.requestCount("HEAD")).isEqualTo(2);
+
+        server.createBucket("other-bucket");
+        new ConnectionPrewarmer(s3Client, 2).prewarm("other-bucket");
+
+        assertThat(server.requestCount("HEAD")).isEqualTo(4);
+    }
+
+    @Test
+    public void sendsNothingWhenDisabled() {
+        ConnectionPrewarmer prewarmer = new ConnectionPrewarmer(s3Client, 0);
+        prewarmer.prewarm(BUCKET);
+
+        assertThat(prewarmer.isEnabled()).isFalse();
+        assertThat(server.requestCount("HEAD")).isZero();
+    }
+
+    @Test
+    public void ignoresAnUnreachableEndpoint() {
+        try (S3Client unreachable = server.clientBuilder().endpointOverride(URI.create("http://127.0.0.1:1")).build()) {
+            new ConnectionPrewarmer(unreachable, 2).prewarm(BUCKET);
+        }
+    }
+
+    @Test
+    public void rejectsANegativeNumberOfConnections() {
+        assertThatThrownBy(() -> new ConnectionPrewarmer(s3Client, -1)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
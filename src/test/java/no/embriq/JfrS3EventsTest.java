@@ -0,0 +1,122 @@
+package no.embriq;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import no.embriq.helpers.LocalS3Server;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class JfrS3EventsTest {
+
+    private static final String BUCKET = "bucket";
+
+    private LocalS3Server server;
+    private S3Client s3Client;
+    private Recording recording;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = LocalS3Server.start();
+        server.createBucket(BUCKET);
+        // like the clients of S3ClientFactory, the SDK client leaves the retries to RetryingS3Client
+        s3Client = new RetryingS3Client(server.clientBuilder()
+                                              .overrideConfiguration(o -> o.retryStrategy(AwsRetryStrategy.doNotRetry()))
+                                              .build(),
+                10, () -> new AdaptiveRateLimiter(false, 0, 5, 0.5));
+        recording = new Recording();
+        recording.enable("no.embriq.S3Get");
+        recording.enable("no.embriq.S3Put");
+        recording.enable("no.embriq.S3Head");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        recording.close();
+        s3Client.close();
+        server.close();
+    }
+
+    @Test
+    public void recordsTheBytesAndStatusOfAGet() throws IOException {
+        server.putObject(BUCKET, "foo-1.0.jar", new byte[12345]);
+        recording.start();
+
+        s3Client.getObjectAsBytes(r -> r.bucket(BUCKET).key("foo-1.0.jar"));
+
+        RecordedEvent event = single(events("no.embriq.S3Get"));
+        assertThat(event.getString("bucket")).isEqualTo(BUCKET);
+        assertThat(event.getString("key")).isEqualTo("foo-1.0.jar");
+        assertThat(event.getLong("bytes")).isEqualTo(12345);
+        assertThat(event.getInt("status")).isEqualTo(200);
+        assertThat(event.getInt("retries")).isZero();
+    }
+
+    @Test
+    public void recordsTheStatusOfAMissingKey() throws IOException {
+        recording.start();
+
+        assertThatThrownBy(() -> s3Client.getObjectAsBytes(r -> r.bucket(BUCKET).key("missing.jar")))
+                .isInstanceOf(NoSuchKeyException.class);
+
+        RecordedEvent event = single(events("no.embriq.S3Get"));
+        assertThat(event.getString("key")).isEqualTo("missing.jar");
+        assertThat(event.getInt("status")).isEqualTo(404);
+        assertThat(event.getLong("bytes")).isZero();
+    }
+
+    @Test
+    public void recordsOneEventForAllAttempts() throws IOException {
+        recording.start();
+        server.throttleNext(2);
+
+        s3Client.putObject(r -> r.bucket(BUCKET).key("foo-1.0.pom"), RequestBody.fromString("<project/>"));
+
+        RecordedEvent event = single(events("no.embriq.S3Put"));
+        assertThat(event.getInt("retries")).isEqualTo(2);
+        assertThat(event.getInt("status")).isEqualTo(200);
+    }
+
+    @Test
+    public void recordsNothingUnlessEnabled() throws IOException {
+        recording.disable("no.embriq.S3Head");
+        recording.start();
+
+        assertThatThrownBy(() -> s3Client.headObject(r -> r.bucket(BUCKET).key("missing.jar")))
+                .isInstanceOf(NoSuchKeyException.class);
+
+        assertThat(events("no.embriq.S3Head")).isEmpty();
+    }
+
+    private List<RecordedEvent> events(String name) throws IOException {
+        recording.stop();
+        Path file = Files.createTempFile(getClass().getSimpleName(), ".jfr");
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file).stream()
+                                .filter(event -> event.getEventType().getName().equals(name))
+                                .collect(Collectors.toList());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static RecordedEvent single(List<RecordedEvent> events) {
+        assertThat(events).hasSize(1);
+        return events.get(0);
+    }
+}
@@ -0,0 +1,76 @@
+package no.embriq;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetadataCacheTest {
+
+    private static final String BUCKET = "bucket";
+
+    @Test
+    public void remembersExistingKeys() {
+        MetadataCache cache = new MetadataCache(60_000, 10);
+        cache.putExisting(BUCKET, "foo-1.0.jar", 123, 456, "\"etag\"");
+
+        MetadataCache.Entry entry = cache.get(BUCKET, "foo-1.0.jar");
+
+        assertThat(entry.exists()).isTrue();
+        assertThat(entry.contentLength()).isEqualTo(123);
+        assertThat(entry.lastModified()).isEqualTo(456);
+        assertThat(entry.eTag()).isEqualTo("\"etag\"");
+        assertThat(cache.get("other-bucket", "foo-1.0.jar")).isNull();
+    }
+
+    @Test
+    public void remembersMissingKeys() {
+        MetadataCache cache = new MetadataCache(60_000, 10);
+        cache.putMissing(BUCKET, "foo-1.0-sources.jar");
+
+        assertThat(cache.get(BUCKET, "foo-1.0-sources.jar").exists()).isFalse();
+    }
+
+    @Test
+    public void forgetsKeysAfterTheTtl() throws InterruptedException {
+        MetadataCache cache = new MetadataCache(50, 10);
+        cache.putExisting(BUCKET, "foo-1.0.jar", 123, 456, "\"etag\"");
+        cache.putMissing(BUCKET, "foo-1.0-sources.jar");
+
+        Thread.sleep(100);
+
+        assertThat(cache.get(BUCKET, "foo-1.0.jar")).isNull();
+        assertThat(cache.get(BUCKET, "foo-1.0-sources.jar")).isNull();
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedKey() {
+        MetadataCache cache = new MetadataCache(60_000, 2);
+        cache.putMissing(BUCKET, "a");
+        cache.putMissing(BUCKET, "b");
+        cache.get(BUCKET, "a");
+        cache.putMissing(BUCKET, "c");
+
+        assertThat(cache.get(BUCKET, "a")).isNotNull();
+        assertThat(cache.get(BUCKET, "b")).isNull();
+        assertThat(cache.get(BUCKET, "c")).isNotNull();
+    }
+
+    @Test
+    public void forgetsInvalidatedKeys() {
+        MetadataCache cache = new MetadataCache(60_000, 10);
+        cache.putMissing(BUCKET, "foo-1.0.jar");
+
+        cache.invalidate(BUCKET, "foo-1.0.jar");
+
+        assertThat(cache.get(BUCKET, "foo-1.0.jar")).isNull();
+    }
+
+    @Test
+    public void remembersNothingWhenDisabled() {
+        MetadataCache cache = new MetadataCache(0, 10);
+        cache.putMissing(BUCKET, "foo-1.0.jar");
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.get(BUCKET, "foo-1.0.jar")).isNull();
+    }
+}
@@ -0,0 +1,131 @@
+package no.embriq;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetadataStoreTest {
+
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "foo/1.0-SNAPSHOT/maven-metadata.xml";
+
+    private Path tempDir;
+    private Path path;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName());
+        path = tempDir.resolve("metadata");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        FileUtils.deleteQuietly(tempDir.toFile());
+    }
+
+    @Test
+    public void remembersKeysAcrossBuilds() {
+        MetadataStore store = new MetadataStore(path, 60_000);
+        store.record(BUCKET, KEY, 1234, "\"etag\"");
+        store.flush();
+
+        MetadataStore.Entry entry = new MetadataStore(path, 60_000).get(BUCKET, KEY);
+
+        assertThat(entry.lastModified()).isEqualTo(1234);
+        assertThat(entry.eTag()).isEqualTo("\"etag\"");
+    }
+
+    @Test
+    public void mergesTheChangesOfParallelBuilds() {
+        MetadataStore first = new MetadataStore(path, 60_000);
+        MetadataStore second = new MetadataStore(path, 60_000);
+        first.record(BUCKET, "a", 1, null);
+        second.record(BUCKET, "b", 2, null);
+
+        first.flush();
+        second.flush();
+
+        MetadataStore later = new MetadataStore(path, 60_000);
+        assertThat(later.get(BUCKET, "a").lastModified()).isEqualTo(1);
+        assertThat(later.get(BUCKET, "b").lastModified()).isEqualTo(2);
+        assertThat(later.get(BUCKET, "b").eTag()).isNull();
+    }
+
+    @Test
+    public void forgetsInvalidatedKeys() {
+        MetadataStore store = new MetadataStore(path, 60_000);
+        store.record(BUCKET, KEY, 1234, "\"etag\"");
+        store.flush();
+
+        MetadataStore deploying = new MetadataStore(path, 60_000);
+        deploying.invalidate(BUCKET, KEY);
+        assertThat(deploying.get(BUCKET, KEY)).isNull();
+        deploying.flush();
+
+        assertThat(new MetadataStore(path, 60_000).get(BUCKET, KEY)).isNull();
+    }
+
+    @Test
+    public void trustsKeysOnlyWhileFresh() {
+        MetadataStore store = new MetadataStore(path, 60_000);
+        store.record(BUCKET, KEY, 1234, "\"etag\"");
+        MetadataStore revalidating = new MetadataStore(path, 0);
+        revalidating.record(BUCKET, KEY, 1234, "\"etag\"");
+
+        assertThat(store.isFresh(store.get(BUCKET, KEY))).isTrue();
+        assertThat(revalidating.isFresh(revalidating.get(BUCKET, KEY))).isFalse();
+    }
+
+    @Test
+    public void ignoresAnUnreadableStore() throws IOException {
+        Files.write(path, "not a metadata store".getBytes(StandardCharsets.UTF_8));
+
+        MetadataStore store = new MetadataStore(path, 60_000);
+        assertThat(store.get(BUCKET, KEY)).isNull();
+
+        store.record(BUCKET, KEY, 1234, null);
+        store.flush();
+        assertThat(new MetadataStore(path, 60_000).get(BUCKET, KEY).lastModified()).isEqualTo(1234);
+    }
+
+    @Test
+    public void sharesAStorePerFile() {
+        System.setProperty(MetadataStore.ENABLED_PROPERTY, "true");
+        System.setProperty(MetadataStore.PATH_PROPERTY, path.toString());
+        try {
+            MetadataStore store = MetadataStore.fromProperties();
+            store.record(BUCKET, KEY, 1234, "\"etag\"");
+
+            assertThat(MetadataStore.fromProperties()).isSameAs(store);
+            System.setProperty(MetadataStore.PATH_PROPERTY, tempDir.resolve("other").toString());
+            assertThat(MetadataStore.fromProperties()).isNotSameAs(store);
+        } finally {
+            System.clearProperty(MetadataStore.ENABLED_PROPERTY);
+            System.clearProperty(MetadataStore.PATH_PROPERTY);
+        }
+    }
+
+    @Test
+    public void mergesChangesIntoTheFileAtMostEveryInterval() {
+        MetadataStore store = new MetadataStore(path, 60_000);
+        store.record(BUCKET, "a", 1, null);
+        store.flushIfDue();
+        store.record(BUCKET, "b", 2, null);
+        store.flushIfDue();
+
+        MetadataStore later = new MetadataStore(path, 60_000);
+        assertThat(later.get(BUCKET, "a").lastModified()).isEqualTo(1);
+        assertThat(later.get(BUCKET, "b")).isNull();
+
+        store.flush();
+        assertThat(new MetadataStore(path, 60_000).get(BUCKET, "b").lastModified()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,116 @@
+package no.embriq;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RequestCoalescerTest {
+
+    private RequestCoalescer coalescer;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() {
+        coalescer = new RequestCoalescer();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sharesTheResultOfTheLeader() throws Exception {
+        CountDownLatch joined = new CountDownLatch(1);
+
+        try (RequestCoalescer.Flight<String> leader = coalescer.join("GET bucket/key")) {
+            assertThat(leader.isLeader()).isTrue();
+            Future<String> follower = follow("GET bucket/key", joined);
+
+            assertThat(joined.await(5, TimeUnit.SECONDS)).isTrue();
+            leader.complete("downloaded");
+
+            assertThat(follower.get(5, TimeUnit.SECONDS)).isEqualTo("downloaded");
+        }
+    }
+
+    @Test
+    public void followersOfAFailedLeaderGetNoResult() throws Exception {
+        CountDownLatch joined = new CountDownLatch(1);
+        RequestCoalescer.Flight<String> leader = coalescer.join("GET bucket/failing");
+        Future<String> follower = follow("GET bucket/failing", joined);
+
+        assertThat(joined.await(5, TimeUnit.SECONDS)).isTrue();
+        leader.close();
+
+        assertThat(follower.get(5, TimeUnit.SECONDS)).isNull();
+    }
+
+    @Test
+    public void startsANewRequestOnceTheLastOneIsDone() {
+        try (RequestCoalescer.Flight<String> first = coalescer.join("GET bucket/again")) {
+            first.complete("first");
+        }
+
+        try (RequestCoalescer.Flight<String> second = coalescer.join("GET bucket/again")) {
+            assertThat(second.isLeader()).isTrue();
+        }
+    }
+
+    @Test
+    public void keepsKeysApart() {
+        try (RequestCoalescer.Flight<String> first = coalescer.join("GET bucket/a");
+             RequestCoalescer.Flight<String> second = coalescer.join("GET bucket/b")) {
+            assertThat(first.isLeader()).isTrue();
+            assertThat(second.isLeader()).isTrue();
+        }
+    }
+
+    @Test
+    public void theLeaderWaitsForFollowersToBeDoneWithTheResult() throws Exception {
+        CountDownLatch joined = new CountDownLatch(1);
+        CountDownLatch hasResult = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        RequestCoalescer.Flight<String> leader = coalescer.join("GET bucket/waiting");
+        executor.submit(() -> {
+            try (RequestCoalescer.Flight<String> flight = coalescer.join("GET bucket/waiting")) {
+                joined.countDown();
+                flight.await();
+                hasResult.countDown();
+                release.await();
+            }
+            return null;
+        });
+
+        assertThat(joined.await(5, TimeUnit.SECONDS)).isTrue();
+        leader.complete("downloaded");
+        assertThat(hasResult.await(5, TimeUnit.SECONDS)).isTrue();
+
+        Future<?> closing = executor.submit(leader::close);
+        Thread.sleep(100);
+        assertThat(closing.isDone()).isFalse();
+
+        release.countDown();
+        closing.get(5, TimeUnit.SECONDS);
+    }
+
+    private Future<String> follow(String key, CountDownLatch joined) {
+        return executor.submit(() -> {
+            try (RequestCoalescer.Flight<String> flight = coalescer.join(key)) {
+                assertThat(flight.isLeader()).isFalse();
+                joined.countDown();
+                return flight.await();
+            }
+        });
+    }
+}
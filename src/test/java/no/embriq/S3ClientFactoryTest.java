@@ -0,0 +1,117 @@
+package no.embriq;
+
+import no.embriq.helpers.LocalS3Server;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class S3ClientFactoryTest {
+
+    private static final String[] PROPERTIES = {S3ClientFactory.ENGINE_PROPERTY, S3ClientFactory.ENDPOINT_OVERRIDE_PROPERTY,
+            S3ClientFactory.MAX_CONNECTIONS_PROPERTY, "aws.region", "aws.accessKeyId", "aws.secretAccessKey"};
+
+    @AfterMethod
+    public void tearDown() {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void usesApacheByDefault() {
+        assertThat(S3ClientFactory.engine()).isEqualTo(S3ClientFactory.Engine.APACHE);
+    }
+
+    @Test
+    public void selectsTheEngineIgnoringCase() {
+        System.setProperty(S3ClientFactory.ENGINE_PROPERTY, "Netty");
+        assertThat(S3ClientFactory.engine()).isEqualTo(S3ClientFactory.Engine.NETTY);
+
+        System.setProperty(S3ClientFactory.ENGINE_PROPERTY, "crt");
+        assertThat(S3ClientFactory.engine()).isEqualTo(S3ClientFactory.Engine.CRT);
+    }
+
+    @Test
+    public void rejectsAnUnknownEngine() {
+        System.setProperty(S3ClientFactory.ENGINE_PROPERTY, "okhttp");
+
+        assertThatThrownBy(S3ClientFactory::engine).isInstanceOf(IllegalArgumentException.class)
+                                                   .hasMessageContaining("okhttp")
+                                                   .hasMessageContaining("apache, netty or crt");
+    }
+
+    @Test
+    public void sharesAClientPerEndpointAndRegion() {
+        System.setProperty("aws.region", "eu-north-1");
+        System.setProperty(S3ClientFactory.ENDPOINT_OVERRIDE_PROPERTY, "http://localhost:1");
+        S3Client client = S3ClientFactory.shared();
+
+        assertThat(S3ClientFactory.shared()).isSameAs(client);
+
+        System.setProperty(S3ClientFactory.ENDPOINT_OVERRIDE_PROPERTY, "http://localhost:2");
+        assertThat(S3ClientFactory.shared()).isNotSameAs(client);
+
+        System.setProperty(S3ClientFactory.ENDPOINT_OVERRIDE_PROPERTY, "http://localhost:1");
+        System.setProperty("aws.region", "eu-west-1");
+        assertThat(S3ClientFactory.shared()).isNotSameAs(client);
+    }
+
+    @Test
+    public void limitsTheConnectionsToTheConfiguredMaximum() throws Exception {
+        try (LocalS3Server server = LocalS3Server.start()) {
+            server.createBucket("bucket");
+            server.latency(300);
+            useServer(server);
+            System.setProperty(S3ClientFactory.MAX_CONNECTIONS_PROPERTY, "2");
+
+            try (S3Client client = S3ClientFactory.create()) {
+                long start = System.nanoTime();
+                new ConnectionPrewarmer(client, 4).prewarm("bucket");
+                long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+                // four requests through two connections take two rounds
+                assertThat(server.requestCount("HEAD")).isEqualTo(4);
+                assertThat(elapsedMillis).isGreaterThanOrEqualTo(2 * 300);
+            }
+        }
+    }
+
+    @DataProvider
+    public Object[][] engines() {
+        // without aws-crt on the class path crt falls back to netty
+        return new Object[][]{{"apache"}, {"netty"}, {"crt"}};
+    }
+
+    @Test(dataProvider = "engines")
+    public void transfersWithEveryEngine(String engine) throws Exception {
+        try (LocalS3Server server = LocalS3Server.start()) {
+            server.createBucket("bucket");
+            useServer(server);
+            System.setProperty(S3ClientFactory.ENGINE_PROPERTY, engine);
+
+            try (S3Client client = S3ClientFactory.create()) {
+                client.putObject(r -> r.bucket("bucket").key("engine/" + engine),
+                        RequestBody.fromString("Sent with " + engine, StandardCharsets.UTF_8));
+                ResponseBytes<GetObjectResponse> object = client.getObjectAsBytes(r -> r.bucket("bucket").key("engine/" + engine));
+
+                assertThat(object.asUtf8String()).isEqualTo("Sent with " + engine);
+            }
+        }
+    }
+
+    private static void useServer(LocalS3Server server) {
+        System.setProperty(S3ClientFactory.ENDPOINT_OVERRIDE_PROPERTY, server.endpoint().toString());
+        System.setProperty("aws.region", LocalS3Server.REGION);
+        System.setProperty("aws.accessKeyId", LocalS3Server.ACCESS_KEY);
+        System.setProperty("aws.secretAccessKey", LocalS3Server.SECRET_KEY);
+    }
+}
@@ -0,0 +1,104 @@
+package no.embriq;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Builds a wagon with the collaborators it gets from the system properties, except for those a test replaces, so a
+ * test only names what it is about.
+ */
+class S3WagonBuilder {
+
+    private final S3Client s3Client;
+    private MultipartUploader multipartUploader;
+    private RangedDownloader rangedDownloader;
+    private ResumableDownloader resumableDownloader;
+    private MetadataCache metadataCache;
+    private MetadataStore metadataStore;
+    private SharedCache sharedCache;
+    private WriteBehindUploader writeBehindUploader;
+    private DirectoryUploader directoryUploader;
+    private UnchangedUploads unchangedUploads;
+    private InlineChecksums inlineChecksums;
+    private ConnectionPrewarmer connectionPrewarmer;
+    private SiblingPrefetcher siblingPrefetcher;
+
+    S3WagonBuilder(S3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    S3WagonBuilder with(MultipartUploader multipartUploader) {
+        this.multipartUploader = multipartUploader;
+        return this;
+    }
+
+    S3WagonBuilder with(RangedDownloader rangedDownloader) {
+        this.rangedDownloader = rangedDownloader;
+        return this;
+    }
+
+    S3WagonBuilder with(ResumableDownloader resumableDownloader) {
+        this.resumableDownloader = resumableDownloader;
+        return this;
+    }
+
+    S3WagonBuilder with(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+        return this;
+    }
+
+    S3WagonBuilder with(MetadataStore metadataStore) {
+        this.metadataStore = metadataStore;
+        return this;
+    }
+
+    S3WagonBuilder with(SharedCache sharedCache) {
+        this.sharedCache = sharedCache;
+        return this;
+    }
+
+    S3WagonBuilder with(WriteBehindUploader writeBehindUploader) {
+        this.writeBehindUploader = writeBehindUploader;
+        return this;
+    }
+
+    S3WagonBuilder with(DirectoryUploader directoryUploader) {
+        this.directoryUploader = directoryUploader;
+        return this;
+    }
+
+    S3WagonBuilder with(UnchangedUploads unchangedUploads) {
+        this.unchangedUploads = unchangedUploads;
+        return this;
+    }
+
+    S3WagonBuilder with(InlineChecksums inlineChecksums) {
+        this.inlineChecksums = inlineChecksums;
+        return this;
+    }
+
+    S3WagonBuilder with(ConnectionPrewarmer connectionPrewarmer) {
+        this.connectionPrewarmer = connectionPrewarmer;
+        return this;
+    }
+
+    S3WagonBuilder with(SiblingPrefetcher siblingPrefetcher) {
+        this.siblingPrefetcher = siblingPrefetcher;
+        return this;
+    }
+
+    S3Wagon build() {
+        return new S3Wagon(s3Client,
+                multipartUploader != null ? multipartUploader : MultipartUploader.fromProperties(s3Client),
+                rangedDownloader != null ? rangedDownloader : RangedDownloader.fromProperties(s3Client),
+                resumableDownloader != null ? resumableDownloader : ResumableDownloader.fromProperties(s3Client),
+                metadataCache != null ? metadataCache : MetadataCache.fromProperties(),
+                metadataStore != null ? metadataStore : MetadataStore.fromProperties(),
+                sharedCache != null ? sharedCache : SharedCache.fromProperties(),
+                writeBehindUploader != null ? writeBehindUploader : WriteBehindUploader.fromProperties(s3Client),
+                directoryUploader != null ? directoryUploader : DirectoryUploader.fromProperties(),
+                unchangedUploads != null ? unchangedUploads : UnchangedUploads.fromProperties(s3Client),
+                inlineChecksums != null ? inlineChecksums : InlineChecksums.fromProperties(),
+                connectionPrewarmer != null ? connectionPrewarmer : ConnectionPrewarmer.fromProperties(s3Client),
+                siblingPrefetcher != null ? siblingPrefetcher : SiblingPrefetcher.fromProperties(s3Client));
+    }
+}
@@ -1,63 +1,69 @@
 package no.embriq;
 
+import no.embriq.helpers.LocalS3Server;
 import org.apache.commons.io.FileUtils;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.TransferFailedException;
 import org.apache.maven.wagon.events.TransferEvent;
 import org.apache.maven.wagon.events.TransferListener;
+import org.apache.maven.wagon.observers.AbstractTransferListener;
 import org.apache.maven.wagon.observers.Debug;
 import org.apache.maven.wagon.repository.Repository;
-import org.testcontainers.containers.GenericContainer;
-import org.testcontainers.utility.DockerImageName;
+import org.testng.SkipException;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeTest;
 import org.testng.annotations.Test;
-import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 import java.io.File;
-import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * It would have been awfully nice to have a testing library for this. Unfortunately the wagon testing harness provided by
  * the wagon people themselves is completely broken. I kinda wonder if they even tried it themselves.
  * So none of the wagon extensions I've seen actually use it.
+ * <p>
+ * Runs against {@link LocalS3Server}, so it needs no Docker and can make S3 slow or misbehave.
  */
 public class S3WagonDirectIntegrationTest {
 
-    public static final String ACCESS_KEY = "access_key";
-    public static final String SECRET_KEY = "secret_key";
-    public static final int PORT = 5000;
-    public static final String REGION = "us-east-1";
     public static final String BUCKET = "bucket";
 
-    private GenericContainer<?> moto;
+    private LocalS3Server server;
     private S3Wagon wagon;
     private S3Client s3Client;
     private Path tempDir;
 
     @BeforeTest
     public void setUp() throws Exception {
-        moto = new GenericContainer<>(
-                DockerImageName.parse("motoserver/moto"))
-                .withEnv("AWS_SECRET_ACCESS_KEY", SECRET_KEY)
-                .withEnv("AWS_ACCESS_KEY_ID", ACCESS_KEY)
-                .withEnv("AWS_DEFAULT_REGION", REGION)
-                .withExposedPorts(PORT);
-        moto.start();
-
-        StaticCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(AwsBasicCredentials.create(ACCESS_KEY, SECRET_KEY));
-        s3Client = S3Client.builder()
-                           .credentialsProvider(credentialsProvider)
-                           .region(Region.of(REGION))
-                           .endpointOverride(URI.create("http://localhost:" + moto.getMappedPort(PORT)))
-                           .build();
+        server = LocalS3Server.start();
+        s3Client = server.client();
 
         s3Client.createBucket(r -> r.bucket(BUCKET));
 
@@ -73,7 +79,7 @@ public class S3WagonDirectIntegrationTest {
 
     @AfterTest
     public void tearDown() {
-        moto.stop();
+        server.close();
         FileUtils.deleteQuietly(tempDir.toFile());
     }
 
@@ -101,7 +107,7 @@ public class S3WagonDirectIntegrationTest {
         String remoteResourceName = "test-folder/test-upload.txt";
         long beforeFirstUpload = System.currentTimeMillis() - 1000;
         wagon.put(originalFile, remoteResourceName);
-        Thread.sleep(1000); // moto uses epoch (seconds). dang.
+        Thread.sleep(1000); // Last-Modified has whole seconds
         long afterFirstUpload = System.currentTimeMillis();
 
         File fetchedContent = tempDir.resolve("test-download.txt").toFile();
@@ -123,7 +129,42 @@ public class S3WagonDirectIntegrationTest {
 
         List<String> files = wagon.getFileList("dir1");
 
-        assertThat(files).contains("dir2", "file.txt");
+        assertThat(files).containsExactlyInAnyOrder("dir2", "file.txt");
+    }
+
+    @Test
+    public void listsDirectoriesWithRegexCharactersInTheirName() throws Exception {
+        File file = tempDir.resolve("test-upload.txt").toFile();
+        Files.write(file.toPath(), "Content".getBytes(StandardCharsets.UTF_8));
+
+        wagon.put(file, "dir+1/a.txt");
+        wagon.put(file, "dir+1/b.txt");
+        wagon.put(file, "dir+12/c.txt");
+
+        List<String> files = wagon.getFileList("dir+1/");
+
+        assertThat(files).containsExactlyInAnyOrder("a.txt", "b.txt");
+    }
+
+    @Test
+    public void putsDirectories() throws Exception {
+        Path site = tempDir.resolve("site");
+        Files.createDirectories(site.resolve("css"));
+        Files.write(site.resolve("index.html"), "<html/>".getBytes(StandardCharsets.UTF_8));
+        Files.write(site.resolve("css/site.css"), "body {}".getBytes(StandardCharsets.UTF_8));
+
+        TransferRecorder transferRecorder = new TransferRecorder(TransferEvent.REQUEST_PUT);
+        wagon.addTransferListener(transferRecorder);
+        try {
+            wagon.putDirectory(site.toFile(), "site");
+        } finally {
+            wagon.removeTransferListener(transferRecorder);
+        }
+
+        assertThat(wagon.supportsDirectoryCopy()).isTrue();
+        assertThat(wagon.getFileList("site")).containsExactlyInAnyOrder("css", "index.html");
+        assertThat(wagon.getFileList("site/css")).containsExactly("site.css");
+        assertThat(transferRecorder.progressBytes).isEqualTo(14);
     }
 
     @Test
@@ -146,26 +187,762 @@ public class S3WagonDirectIntegrationTest {
         assertThat(transferRecorder.completedContentLength).isEqualTo(sourceContent.length);
     }
 
+    @Test
+    public void streamsUploadAndReportsProgress() throws Exception {
+        byte[] sourceContent = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(sourceContent);
+        File sourceFile = tempDir.resolve("streamed-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), sourceContent);
+
+        TransferRecorder transferRecorder = new TransferRecorder(TransferEvent.REQUEST_PUT);
+        wagon.addTransferListener(transferRecorder);
+
+        String remoteResourceName = "test-folder/streamed-upload.bin";
+        wagon.put(sourceFile, remoteResourceName);
+        wagon.removeTransferListener(transferRecorder);
+
+        File destinationFile = tempDir.resolve("streamed-download.bin").toFile();
+        wagon.get(remoteResourceName, destinationFile);
+
+        assertThat(transferRecorder.progressBytes).isEqualTo(sourceContent.length);
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(sourceContent);
+    }
+
+    @Test
+    public void uploadsLargeFilesInParts() throws Exception {
+        byte[] sourceContent = new byte[(int) (2.5 * MultipartUploader.MIN_PART_SIZE)];
+        new Random(7).nextBytes(sourceContent);
+        File sourceFile = tempDir.resolve("multipart-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), sourceContent);
+
+        MultipartUploader multipartUploader = new MultipartUploader(s3Client, MultipartUploader.MIN_PART_SIZE,
+                MultipartUploader.MIN_PART_SIZE, 3);
+        S3Wagon multipartWagon = new S3WagonBuilder(s3Client).with(multipartUploader).build();
+        multipartWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        TransferRecorder transferRecorder = new TransferRecorder(TransferEvent.REQUEST_PUT);
+        multipartWagon.addTransferListener(transferRecorder);
+
+        String remoteResourceName = "test-folder/multipart-upload.bin";
+        multipartWagon.put(sourceFile, remoteResourceName);
+
+        File destinationFile = tempDir.resolve("multipart-download.bin").toFile();
+        wagon.get(remoteResourceName, destinationFile);
+
+        assertThat(transferRecorder.progressBytes).isEqualTo(sourceContent.length);
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(sourceContent);
+        assertThat(s3Client.listMultipartUploads(r -> r.bucket(BUCKET)).uploads()).isEmpty();
+    }
+
+    @Test
+    public void skipsUploadsOfUnchangedFiles() throws Exception {
+        File sourceFile = tempDir.resolve("unchanged-upload.txt").toFile();
+        Files.write(sourceFile.toPath(), "Unchanged content".getBytes(StandardCharsets.UTF_8));
+
+        S3Wagon skippingWagon = new S3WagonBuilder(s3Client).with(new UnchangedUploads(s3Client, true)).build();
+        skippingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        String remoteResourceName = "test-folder/unchanged-upload.txt";
+        skippingWagon.put(sourceFile, remoteResourceName);
+        Instant firstUpload = s3Client.headObject(r -> r.bucket(BUCKET).key(remoteResourceName)).lastModified();
+        Thread.sleep(1100);
+
+        TransferRecorder transferRecorder = new TransferRecorder(TransferEvent.REQUEST_PUT);
+        skippingWagon.addTransferListener(transferRecorder);
+        skippingWagon.put(sourceFile, remoteResourceName);
+
+        assertThat(transferRecorder.progressBytes).isEqualTo(sourceFile.length());
+        assertThat(s3Client.headObject(r -> r.bucket(BUCKET).key(remoteResourceName)).lastModified()).isEqualTo(firstUpload);
+    }
+
+    @Test
+    public void answersChecksumFilesFromObjectMetadata() throws Exception {
+        File sourceFile = tempDir.resolve("inline-checksums.txt").toFile();
+        Files.write(sourceFile.toPath(), "Checksummed content".getBytes(StandardCharsets.UTF_8));
+
+        S3Wagon checksummingWagon = new S3WagonBuilder(s3Client).with(new MetadataCache(60_000, 100))
+                                                            .with(new InlineChecksums(true))
+                                                            .build();
+        checksummingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        String remoteResourceName = "test-folder/inline-checksums.txt";
+        checksummingWagon.put(sourceFile, remoteResourceName);
+        checksummingWagon.get(remoteResourceName, tempDir.resolve("inline-checksums-download.txt").toFile());
+
+        // the checksum file was never uploaded, so it can only come from the metadata
+        File sha1File = tempDir.resolve("inline-checksums-download.txt.sha1").toFile();
+        checksummingWagon.get(remoteResourceName + ".sha1", sha1File);
+
+        assertThat(new String(Files.readAllBytes(sha1File.toPath()), StandardCharsets.UTF_8))
+                .isEqualTo("e6f1dd011785f49d426b31d4a8f71e2ed03d28cf");
+    }
+
+    @Test
+    public void uploadsDigestedFilesFromMemoryAcrossRetries() throws Exception {
+        byte[] sourceContent = new byte[100 * 1024];
+        new Random(11).nextBytes(sourceContent);
+        File sourceFile = tempDir.resolve("digested-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), sourceContent);
+
+        S3Client throttledClient = throttledClient(3);
+        S3Wagon checksummingWagon = new S3WagonBuilder(throttledClient).with(new InlineChecksums(true)).build();
+        checksummingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+        TransferRecorder transferRecorder = new TransferRecorder(TransferEvent.REQUEST_PUT);
+        checksummingWagon.addTransferListener(transferRecorder);
+
+        server.throttleNext(1);
+        try {
+            checksummingWagon.put(sourceFile, "test-folder/digested-upload.bin");
+        } finally {
+            server.noFaults();
+        }
+
+        // the listeners see every byte once, although the body was sent twice
+        assertThat(transferRecorder.progressBytes).isEqualTo(sourceContent.length);
+        assertThat(server.getObject(BUCKET, "test-folder/digested-upload.bin")).isEqualTo(sourceContent);
+    }
+
+    @Test
+    public void downloadsLargeFilesInRanges() throws Exception {
+        byte[] sourceContent = new byte[1024 * 1024 + 123];
+        new Random(11).nextBytes(sourceContent);
+        File sourceFile = tempDir.resolve("ranged-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), sourceContent);
+
+        String remoteResourceName = "test-folder/ranged-upload.bin";
+        wagon.put(sourceFile, remoteResourceName);
+
+        RangedDownloader rangedDownloader = new RangedDownloader(s3Client, 256 * 1024, 100 * 1024, 3, 2);
+        S3Wagon rangedWagon = new S3WagonBuilder(s3Client).with(rangedDownloader).build();
+        rangedWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        TransferRecorder transferRecorder = new TransferRecorder();
+        rangedWagon.addTransferListener(transferRecorder);
+
+        File destinationFile = tempDir.resolve("ranged-download.bin").toFile();
+        rangedWagon.get(remoteResourceName, destinationFile);
+
+        assertThat(transferRecorder.startedContentLength).isEqualTo(sourceContent.length);
+        assertThat(transferRecorder.progressBytes).isEqualTo(sourceContent.length);
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(sourceContent);
+    }
+
+    @Test
+    public void downloadsEmptyFiles() throws Exception {
+        File sourceFile = tempDir.resolve("empty-upload.txt").toFile();
+        Files.write(sourceFile.toPath(), new byte[0]);
+
+        String remoteResourceName = "test-folder/empty-upload.txt";
+        wagon.put(sourceFile, remoteResourceName);
+
+        File destinationFile = tempDir.resolve("empty-download.txt").toFile();
+        wagon.get(remoteResourceName, destinationFile);
+
+        assertThat(destinationFile).exists().isEmpty();
+        assertThat(tempDir.toFile().list()).noneMatch(name -> name.endsWith(".s3tmp"));
+    }
+
+    @Test
+    public void downloadsWithThePermissionsOfANewFile() throws Exception {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            throw new SkipException("Needs POSIX file permissions");
+        }
+
+        File sourceFile = tempDir.resolve("permissions-upload.txt").toFile();
+        Files.write(sourceFile.toPath(), "Readable by the group".getBytes(StandardCharsets.UTF_8));
+
+        String remoteResourceName = "test-folder/permissions-upload.txt";
+        wagon.put(sourceFile, remoteResourceName);
+
+        File destinationFile = tempDir.resolve("permissions-download.txt").toFile();
+        wagon.get(remoteResourceName, destinationFile);
+
+        // what the umask gives a file, where a temporary file would only be the owner's
+        Path newFile = Files.createFile(tempDir.resolve("permissions-new.txt"));
+        assertThat(Files.getPosixFilePermissions(destinationFile.toPath())).isEqualTo(Files.getPosixFilePermissions(newFile));
+    }
+
+    @Test
+    public void retriesThrottledRequests() throws Exception {
+        File sourceFile = tempDir.resolve("throttled-upload.txt").toFile();
+        Files.write(sourceFile.toPath(), "Throttled content".getBytes(StandardCharsets.UTF_8));
+
+        String remoteResourceName = "test-folder/throttled-upload.txt";
+        wagon.put(sourceFile, remoteResourceName);
+
+        S3Client notRetryingClient = server.clientBuilder()
+                                           .overrideConfiguration(o -> o.retryStrategy(AwsRetryStrategy.doNotRetry()))
+                                           .build();
+        S3Wagon retryingWagon = new S3Wagon(RetryingS3Client.fromProperties(notRetryingClient));
+        retryingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        long throttledBefore = server.throttledCount();
+        File destinationFile = tempDir.resolve("throttled-download.txt").toFile();
+        server.throttleNext(3);
+        try {
+            retryingWagon.get(remoteResourceName, destinationFile);
+        } finally {
+            server.noFaults();
+        }
+
+        assertThat(server.throttledCount() - throttledBefore).isEqualTo(3);
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(Files.readAllBytes(sourceFile.toPath()));
+    }
+
+    @Test
+    public void boundsTheRequestsOfAThrottledMultipartUpload() throws Exception {
+        File sourceFile = tempDir.resolve("throttled-multipart-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), new byte[(int) (2.5 * MultipartUploader.MIN_PART_SIZE)]);
+
+        S3Client throttledClient = throttledClient(3);
+        MultipartUploader multipartUploader = new MultipartUploader(throttledClient, MultipartUploader.MIN_PART_SIZE,
+                MultipartUploader.MIN_PART_SIZE, 3);
+        S3Wagon multipartWagon = new S3WagonBuilder(throttledClient).with(multipartUploader).build();
+        multipartWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        int partsBefore = server.requestCount("UPLOAD_PART");
+        server.fail("UPLOAD_PART", 503, "SlowDown");
+        try {
+            assertThatThrownBy(() -> multipartWagon.put(sourceFile, "test-folder/throttled-multipart-upload.bin"))
+                    .isInstanceOf(TransferFailedException.class);
+        } finally {
+            server.noFaults();
+        }
+
+        // three parts, each attempted at most three times by the client and no more by the uploader
+        assertThat(server.requestCount("UPLOAD_PART") - partsBefore).isBetween(3, 3 * 3);
+        assertThat(server.pendingMultipartUploads()).isZero();
+    }
+
+    @Test
+    public void boundsTheRequestsOfAThrottledDirectoryUpload() throws Exception {
+        Path site = tempDir.resolve("throttled-site");
+        Files.createDirectories(site);
+        for (int i = 0; i < 4; i++) {
+            Files.write(site.resolve("page" + i + ".html"), "<html/>".getBytes(StandardCharsets.UTF_8));
+        }
+
+        S3Wagon throttledWagon = new S3WagonBuilder(throttledClient(3)).build();
+        throttledWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        int putsBefore = server.requestCount("PUT");
+        server.fail("PUT", 503, "SlowDown");
+        try {
+            assertThatThrownBy(() -> throttledWagon.putDirectory(site.toFile(), "throttled-site"))
+                    .isInstanceOf(TransferFailedException.class);
+        } finally {
+            server.noFaults();
+        }
+
+        assertThat(server.requestCount("PUT") - putsBefore).isBetween(3, 4 * 3);
+    }
+
+    @Test
+    public void getsUnchangedObjectsFromTheSharedCache() throws Exception {
+        byte[] content = "Shared content".getBytes(StandardCharsets.UTF_8);
+        server.putObject(BUCKET, "shared/hit.txt", content);
+        SharedCache sharedCache = new SharedCache(tempDir.resolve("shared-cache-hit"), 1 << 20);
+
+        sharedCacheWagon(sharedCache).get("shared/hit.txt", tempDir.resolve("shared-hit-1.txt").toFile());
+        int getsBefore = server.requestCount("GET");
+        File destinationFile = tempDir.resolve("shared-hit-2.txt").toFile();
+        sharedCacheWagon(sharedCache).get("shared/hit.txt", destinationFile);
+
+        // only the conditional GET telling that the cached version is still current
+        assertThat(server.requestCount("GET") - getsBefore).isEqualTo(1);
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(content);
+    }
+
+    @Test
+    public void downloadsObjectsEvictedFromTheSharedCacheDuringTheGet() throws Exception {
+        byte[] content = "Evicted content".getBytes(StandardCharsets.UTF_8);
+        server.putObject(BUCKET, "shared/evicted.txt", content);
+        Path cacheRoot = tempDir.resolve("shared-cache-evicted");
+        SharedCache evictingCache = new SharedCache(cacheRoot, 1 << 20) {
+            @Override
+            String eTag(String bucket, String key) {
+                String eTag = super.eTag(bucket, key);
+                // evicted by another build right after this one found it
+                FileUtils.deleteQuietly(cacheRoot.resolve("objects").toFile());
+                return eTag;
+            }
+        };
+
+        sharedCacheWagon(new SharedCache(cacheRoot, 1 << 20)).get("shared/evicted.txt", tempDir.resolve("shared-evicted-1.txt").toFile());
+        File destinationFile = tempDir.resolve("shared-evicted-2.txt").toFile();
+        sharedCacheWagon(evictingCache).get("shared/evicted.txt", destinationFile);
+
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(content);
+    }
+
+    @Test
+    public void downloadsObjectsTheSharedCacheCanNotRead() throws Exception {
+        byte[] content = "Content of a broken cache".getBytes(StandardCharsets.UTF_8);
+        server.putObject(BUCKET, "shared/broken.txt", content);
+        Path cacheRoot = tempDir.resolve("shared-cache-broken");
+        SharedCache sharedCache = new SharedCache(cacheRoot, 1 << 20);
+
+        sharedCacheWagon(sharedCache).get("shared/broken.txt", tempDir.resolve("shared-broken-1.txt").toFile());
+        Path object;
+        try (Stream<Path> objects = Files.list(cacheRoot.resolve("objects"))) {
+            object = objects.findFirst().orElseThrow(IllegalStateException::new);
+        }
+        Files.delete(object);
+        Files.createDirectory(object);
+
+        File destinationFile = tempDir.resolve("shared-broken-2.txt").toFile();
+        sharedCacheWagon(sharedCache).get("shared/broken.txt", destinationFile);
+
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(content);
+        // the download replaced the broken entry
+        assertThat(Files.isRegularFile(object)).isTrue();
+    }
+
+    @Test
+    public void downloadsObjectsChangedInTheSharedCache() throws Exception {
+        byte[] content = "Content changed in place".getBytes(StandardCharsets.UTF_8);
+        server.putObject(BUCKET, "shared/changed.txt", content);
+        Path cacheRoot = tempDir.resolve("shared-cache-changed");
+        SharedCache sharedCache = new SharedCache(cacheRoot, 1 << 20);
+
+        sharedCacheWagon(sharedCache).get("shared/changed.txt", tempDir.resolve("shared-changed-1.txt").toFile());
+        Path object;
+        try (Stream<Path> objects = Files.list(cacheRoot.resolve("objects"))) {
+            object = objects.findFirst().orElseThrow(IllegalStateException::new);
+        }
+        assertThat(Files.getPosixFilePermissions(object)).doesNotContain(PosixFilePermission.OWNER_WRITE);
+
+        // e.g. a tool rewriting its copy in the local repository, which is the same file
+        object.toFile().setWritable(true);
+        Files.write(object, "Content CHANGED in place".getBytes(StandardCharsets.UTF_8));
+
+        File destinationFile = tempDir.resolve("shared-changed-2.txt").toFile();
+        sharedCacheWagon(sharedCache).get("shared/changed.txt", destinationFile);
+
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(content);
+        assertThat(Files.readAllBytes(object)).isEqualTo(content);
+    }
+
+    @Test
+    public void onlySharesVerifiedDownloads() throws Exception {
+        // uploaded in parts, so the ETag isn't the MD5 of the content
+        File sourceFile = tempDir.resolve("shared-unverified.txt").toFile();
+        Files.write(sourceFile.toPath(), "Content of unknown MD5".getBytes(StandardCharsets.UTF_8));
+        new MultipartUploader(s3Client, 1, MultipartUploader.MIN_PART_SIZE, 1)
+                .upload(BUCKET, "shared/unverified.txt", sourceFile.toPath(), sourceFile.length(), Collections.emptyMap(), (buffer, length) -> {
+                });
+        Path cacheRoot = tempDir.resolve("shared-cache-unverified");
+
+        sharedCacheWagon(new SharedCache(cacheRoot, 1 << 20)).get("shared/unverified.txt", tempDir.resolve("shared-unverified-1.txt").toFile());
+
+        assertThat(cacheRoot.resolve("objects")).doesNotExist();
+    }
+
+    @Test
+    public void uploadsMetadataAfterTheArtifactsOfEveryWagon() throws Exception {
+        S3Client slowJarsClient = beforeJarUploads(s3Client, () -> sleep(500));
+        Path metadataFile = tempDir.resolve("async-maven-metadata.xml");
+        Files.write(metadataFile, "<metadata/>".getBytes(StandardCharsets.UTF_8));
+        CyclicBarrier queued = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            List<Future<?>> deploys = new ArrayList<>();
+            for (String artifactId : new String[]{"first", "second"}) {
+                Path jar = tempDir.resolve("async-" + artifactId + ".jar");
+                Files.write(jar, artifactId.getBytes(StandardCharsets.UTF_8));
+
+                deploys.add(executor.submit(() -> {
+                    // a wagon per transfer, like Maven
+                    S3Wagon artifactWagon = asyncWagon(slowJarsClient);
+                    artifactWagon.put(jar.toFile(), "async/" + artifactId + "/1.0/" + artifactId + "-1.0.jar");
+                    queued.await(5, TimeUnit.SECONDS);
+
+                    S3Wagon metadataWagon = asyncWagon(slowJarsClient);
+                    metadataWagon.put(metadataFile.toFile(), "async/" + artifactId + "/maven-metadata.xml");
+                    assertThat(server.getObject(BUCKET, "async/first/1.0/first-1.0.jar")).isNotNull();
+                    assertThat(server.getObject(BUCKET, "async/second/1.0/second-1.0.jar")).isNotNull();
+
+                    artifactWagon.disconnect();
+                    metadataWagon.disconnect();
+                    return null;
+                }));
+            }
+
+            for (Future<?> deploy : deploys) {
+                deploy.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reportsAFailedUploadOfAnotherWagonBeforeUploadingMetadata() throws Exception {
+        S3Client failingJarsClient = beforeJarUploads(s3Client, () -> {
+            throw S3Exception.builder().statusCode(403).message("Access Denied").build();
+        });
+        Path jar = tempDir.resolve("async-failing.jar");
+        Files.write(jar, "failing".getBytes(StandardCharsets.UTF_8));
+        Path metadataFile = tempDir.resolve("async-failing-maven-metadata.xml");
+        Files.write(metadataFile, "<metadata/>".getBytes(StandardCharsets.UTF_8));
+
+        S3Wagon artifactWagon = asyncWagon(failingJarsClient);
+        artifactWagon.put(jar.toFile(), "async-failing/1.0/async-failing-1.0.jar");
+        S3Wagon metadataWagon = asyncWagon(failingJarsClient);
+
+        assertThatThrownBy(() -> metadataWagon.put(metadataFile.toFile(), "async-failing/maven-metadata.xml"))
+                .isInstanceOf(TransferFailedException.class)
+                .hasMessageContaining("async-failing-1.0.jar");
+        assertThat(server.getObject(BUCKET, "async-failing/maven-metadata.xml")).isNull();
+
+        // reported once, by the put
+        artifactWagon.disconnect();
+        metadataWagon.disconnect();
+    }
+
+    @Test
+    public void reportsAFailedUploadNoPutReportedWhenTheLastWagonDisconnects() throws Exception {
+        S3Client failingJarsClient = beforeJarUploads(s3Client, () -> {
+            throw S3Exception.builder().statusCode(403).message("Access Denied").build();
+        });
+        Path jar = tempDir.resolve("async-unreported.jar");
+        Files.write(jar, "unreported".getBytes(StandardCharsets.UTF_8));
+
+        S3Wagon artifactWagon = asyncWagon(failingJarsClient);
+        S3Wagon otherWagon = asyncWagon(failingJarsClient);
+        artifactWagon.put(jar.toFile(), "async-unreported/1.0/async-unreported-1.0.jar");
+
+        // the other wagon may still report it from a put
+        artifactWagon.disconnect();
+
+        assertThatThrownBy(otherWagon::disconnect).isInstanceOf(ConnectionException.class)
+                                                  .hasCauseInstanceOf(TransferFailedException.class)
+                                                  .hasMessageContaining("async-unreported-1.0.jar");
+    }
+
+    @Test
+    public void resumesBrokenDownloads() throws Exception {
+        byte[] sourceContent = new byte[512 * 1024];
+        new Random(13).nextBytes(sourceContent);
+        File sourceFile = tempDir.resolve("broken-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), sourceContent);
+
+        String remoteResourceName = "test-folder/broken-upload.bin";
+        wagon.put(sourceFile, remoteResourceName);
+
+        TransferRecorder transferRecorder = new TransferRecorder();
+        wagon.addTransferListener(transferRecorder);
+        File destinationFile = tempDir.resolve("broken-download.bin").toFile();
+        server.resetNextDownloads(1, 100 * 1024);
+        try {
+            wagon.get(remoteResourceName, destinationFile);
+        } finally {
+            server.noFaults();
+            wagon.removeTransferListener(transferRecorder);
+        }
+
+        assertThat(server.requestCount("GET")).isGreaterThanOrEqualTo(2);
+        assertThat(transferRecorder.progressBytes).isEqualTo(sourceContent.length);
+        assertThat(Files.readAllBytes(destinationFile.toPath())).isEqualTo(sourceContent);
+    }
+
+    @Test
+    public void prefetchesTheSiblingsOfPoms() throws Exception {
+        String base = "org/example/prefetched/1.0/prefetched-1.0";
+        byte[] jarContent = new byte[64 * 1024];
+        new Random(17).nextBytes(jarContent);
+        server.putObject(BUCKET, base + ".pom", "<project><packaging>jar</packaging></project>".getBytes(StandardCharsets.UTF_8));
+        server.putObject(BUCKET, base + ".pom.sha1", "pom checksum".getBytes(StandardCharsets.UTF_8));
+        server.putObject(BUCKET, base + ".jar", jarContent);
+        server.putObject(BUCKET, base + ".jar.sha1", "jar checksum".getBytes(StandardCharsets.UTF_8));
+
+        SiblingPrefetcher siblingPrefetcher = new SiblingPrefetcher(s3Client, 2, 60_000, 1024 * 1024);
+        S3Wagon prefetchingWagon = new S3WagonBuilder(s3Client).with(siblingPrefetcher).build();
+        prefetchingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        int getsBefore = server.requestCount("GET");
+        prefetchingWagon.get(base + ".pom", tempDir.resolve("prefetched-1.0.pom").toFile());
+
+        // the POM's own GET, and one for each sibling once the prefetches are running
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.requestCount("GET") < getsBefore + 4 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        TransferRecorder transferRecorder = new TransferRecorder();
+        prefetchingWagon.addTransferListener(transferRecorder);
+        File jarFile = tempDir.resolve("prefetched-1.0.jar").toFile();
+        File jarSha1File = tempDir.resolve("prefetched-1.0.jar.sha1").toFile();
+        prefetchingWagon.get(base + ".jar", jarFile);
+        prefetchingWagon.get(base + ".jar.sha1", jarSha1File);
+        prefetchingWagon.get(base + ".pom.sha1", tempDir.resolve("prefetched-1.0.pom.sha1").toFile());
+
+        assertThat(server.requestCount("GET")).isEqualTo(getsBefore + 4);
+        assertThat(siblingPrefetcher.usedCount()).isEqualTo(3);
+        assertThat(Files.readAllBytes(jarFile.toPath())).isEqualTo(jarContent);
+        assertThat(jarSha1File).hasContent("jar checksum");
+        assertThat(transferRecorder.progressBytes).isEqualTo(jarContent.length + jarSha1File.length() + "pom checksum".length());
+    }
+
+    @Test
+    public void doesNotUsePrefetchesOfKeysDeployedWithADirectory() throws Exception {
+        String base = "org/example/redeployed/1.0/redeployed-1.0";
+        server.putObject(BUCKET, base + ".pom", "<project><packaging>jar</packaging></project>".getBytes(StandardCharsets.UTF_8));
+        server.putObject(BUCKET, base + ".jar", "Deployed first".getBytes(StandardCharsets.UTF_8));
+
+        SiblingPrefetcher siblingPrefetcher = new SiblingPrefetcher(s3Client, 2, 60_000, 1024 * 1024);
+        S3Wagon prefetchingWagon = new S3WagonBuilder(s3Client).with(siblingPrefetcher).build();
+        prefetchingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        int getsBefore = server.requestCount("GET");
+        prefetchingWagon.get(base + ".pom", tempDir.resolve("redeployed-1.0.pom").toFile());
+
+        // the POM's own GET, and one for the jar once its prefetch is running
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.requestCount("GET") < getsBefore + 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Path redeployed = tempDir.resolve("redeployed");
+        Files.createDirectories(redeployed);
+        Files.write(redeployed.resolve("redeployed-1.0.jar"), "Deployed again".getBytes(StandardCharsets.UTF_8));
+        prefetchingWagon.putDirectory(redeployed.toFile(), "org/example/redeployed/1.0");
+
+        File jarFile = tempDir.resolve("redeployed-1.0.jar").toFile();
+        prefetchingWagon.get(base + ".jar", jarFile);
+
+        assertThat(jarFile).hasContent("Deployed again");
+        assertThat(siblingPrefetcher.usedCount()).isZero();
+    }
+
+    @Test
+    public void leavesNoPartialFileAfterAFailedDownload() throws Exception {
+        byte[] sourceContent = new byte[256 * 1024];
+        new Random(19).nextBytes(sourceContent);
+        File sourceFile = tempDir.resolve("failing-upload.bin").toFile();
+        Files.write(sourceFile.toPath(), sourceContent);
+
+        String remoteResourceName = "test-folder/failing-upload.bin";
+        wagon.put(sourceFile, remoteResourceName);
+
+        Path directory = Files.createDirectory(tempDir.resolve("failing-download"));
+        server.resetNextDownloads(10, 16 * 1024);
+        try {
+            assertThatThrownBy(() -> wagon.get(remoteResourceName, directory.resolve("failing-download.bin").toFile()))
+                    .isInstanceOf(TransferFailedException.class);
+        } finally {
+            server.noFaults();
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    public void initiatesAConditionalGetBeforeItsError() throws Exception {
+        List<Integer> eventTypes = new ArrayList<>();
+        TransferListener eventRecorder = new AbstractTransferListener() {
+            @Override
+            public void transferInitiated(TransferEvent transferEvent) {
+                eventTypes.add(transferEvent.getEventType());
+            }
+
+            @Override
+            public void transferError(TransferEvent transferEvent) {
+                eventTypes.add(transferEvent.getEventType());
+            }
+        };
+
+        wagon.addTransferListener(eventRecorder);
+        try {
+            assertThatThrownBy(() -> wagon.getIfNewer("test-folder/never-uploaded.txt",
+                    tempDir.resolve("never-downloaded.txt").toFile(), 0))
+                    .isInstanceOf(ResourceDoesNotExistException.class);
+        } finally {
+            wagon.removeTransferListener(eventRecorder);
+        }
+
+        assertThat(eventTypes).containsExactly(TransferEvent.TRANSFER_INITIATED, TransferEvent.TRANSFER_ERROR);
+    }
+
+    @Test
+    public void forgetsThatAKeyIsMissingWhenItIsUploaded() throws Exception {
+        S3Wagon cachingWagon = new S3WagonBuilder(s3Client).with(new MetadataCache(60_000, 100)).build();
+        cachingWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        String remoteResourceName = "test-folder/uploaded-later.txt";
+        assertThat(cachingWagon.resourceExists(remoteResourceName)).isFalse();
+
+        File sourceFile = tempDir.resolve("uploaded-later.txt").toFile();
+        Files.write(sourceFile.toPath(), "Uploaded later".getBytes(StandardCharsets.UTF_8));
+        cachingWagon.put(sourceFile, remoteResourceName);
+
+        assertThat(cachingWagon.resourceExists(remoteResourceName)).isTrue();
+    }
+
+    @Test
+    public void answersGetIfNewerFromTheMetadataStoreOfAnEarlierBuild() throws Exception {
+        File sourceFile = tempDir.resolve("stored-metadata.xml").toFile();
+        Files.write(sourceFile.toPath(), "<metadata/>".getBytes(StandardCharsets.UTF_8));
+        String remoteResourceName = "test-folder/1.0-SNAPSHOT/maven-metadata.xml";
+        wagon.put(sourceFile, remoteResourceName);
+
+        Path storePath = tempDir.resolve("metadata-store");
+        S3Wagon firstBuild = new S3WagonBuilder(s3Client).with(new MetadataStore(storePath, 60_000)).build();
+        firstBuild.connect(new Repository("nisse", "s3://" + BUCKET));
+        File destinationFile = tempDir.resolve("stored-metadata-download.xml").toFile();
+        assertThat(firstBuild.getIfNewer(remoteResourceName, destinationFile, 0)).isTrue();
+        firstBuild.disconnect();
+
+        int requestsBefore = server.requestCount("GET") + server.requestCount("HEAD");
+        S3Wagon secondBuild = new S3WagonBuilder(s3Client).with(new MetadataStore(storePath, 60_000)).build();
+        secondBuild.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        assertThat(secondBuild.getIfNewer(remoteResourceName, destinationFile, System.currentTimeMillis())).isFalse();
+        assertThat(server.requestCount("GET") + server.requestCount("HEAD")).isEqualTo(requestsBefore);
+    }
+
+    @Test
+    public void doesNotGetIfNewerAChangedObjectThatIsNotNewer() throws Exception {
+        File sourceFile = tempDir.resolve("changed-metadata.xml").toFile();
+        Files.write(sourceFile.toPath(), "<metadata/>".getBytes(StandardCharsets.UTF_8));
+        String remoteResourceName = "test-folder/2.0-SNAPSHOT/maven-metadata.xml";
+        wagon.put(sourceFile, remoteResourceName);
+
+        // an earlier build saw another ETag, and the store has to revalidate it
+        MetadataStore store = new MetadataStore(tempDir.resolve("changed-metadata-store"), 0);
+        long lastModified = s3Client.headObject(b -> b.bucket(BUCKET).key(remoteResourceName)).lastModified().toEpochMilli();
+        store.record(BUCKET, remoteResourceName, lastModified, "\"replaced\"");
+        S3Wagon revalidating = new S3WagonBuilder(s3Client).with(store).build();
+        revalidating.connect(new Repository("nisse", "s3://" + BUCKET));
+
+        File destinationFile = tempDir.resolve("changed-metadata-download.xml").toFile();
+        assertThat(revalidating.getIfNewer(remoteResourceName, destinationFile, System.currentTimeMillis() + 60_000)).isFalse();
+        assertThat(destinationFile).doesNotExist();
+        assertThat(store.get(BUCKET, remoteResourceName).eTag()).isNotEqualTo("\"replaced\"");
+        revalidating.disconnect();
+    }
+
+    @Test
+    public void coalescesConcurrentDownloadsOfTheSameResource() throws Exception {
+        File sourceFile = tempDir.resolve("coalesced-upload.txt").toFile();
+        Files.write(sourceFile.toPath(), "Wanted by every module".getBytes(StandardCharsets.UTF_8));
+        String remoteResourceName = "test-folder/coalesced-upload.txt";
+        wagon.put(sourceFile, remoteResourceName);
+
+        // a wagon per thread, as Maven looks them up, all asking while the first GET is slow to answer
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<byte[]>> downloads = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            File destinationFile = tempDir.resolve("coalesced-download-" + i + ".txt").toFile();
+            downloads.add(executor.submit(() -> {
+                S3Wagon threadWagon = new S3Wagon(s3Client);
+                threadWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+                start.await();
+                threadWagon.get(remoteResourceName, destinationFile);
+                return Files.readAllBytes(destinationFile.toPath());
+            }));
+        }
+
+        int getsBefore = server.requestCount("GET");
+        server.latency(500);
+        try {
+            start.countDown();
+            for (Future<byte[]> download : downloads) {
+                assertThat(download.get(30, TimeUnit.SECONDS)).isEqualTo(Files.readAllBytes(sourceFile.toPath()));
+            }
+        } finally {
+            server.latency(0);
+            executor.shutdownNow();
+        }
+
+        assertThat(server.requestCount("GET") - getsBefore).isEqualTo(1);
+    }
+
+    /**
+     * A wagon that asks S3 whether its shared cache is current, instead of trusting the metadata cache.
+     */
+    private S3Wagon sharedCacheWagon(SharedCache sharedCache) throws Exception {
+        S3Wagon sharedCacheWagon = new S3WagonBuilder(s3Client).with(sharedCache).with(new MetadataCache(0, 100)).build();
+        sharedCacheWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+        return sharedCacheWagon;
+    }
+
+    /**
+     * A wagon that uploads in the background, connected to the test bucket.
+     */
+    private static S3Wagon asyncWagon(S3Client s3Client) throws Exception {
+        S3Wagon asyncWagon = new S3WagonBuilder(s3Client).with(new WriteBehindUploader(s3Client, true, 4, 16)).build();
+        asyncWagon.connect(new Repository("nisse", "s3://" + BUCKET));
+        return asyncWagon;
+    }
+
+    /**
+     * A client that runs {@code beforeJar} before every upload of a jar, to make it slow or fail.
+     */
+    private static S3Client beforeJarUploads(S3Client s3Client, Runnable beforeJar) {
+        return new DelegatingS3Client(s3Client) {
+            @Override
+            public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+                if (request.key().endsWith(".jar")) {
+                    beforeJar.run();
+                }
+                return super.putObject(request, body);
+            }
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A client that retries throttled requests {@code attempts} times, and leaves nothing to the SDK to retry.
+     */
+    private S3Client throttledClient(int attempts) {
+        S3Client notRetryingClient = server.clientBuilder()
+                                           .overrideConfiguration(o -> o.retryStrategy(AwsRetryStrategy.doNotRetry()))
+                                           .build();
+        return new RetryingS3Client(notRetryingClient, attempts, () -> new AdaptiveRateLimiter(true, 0, 5, 0.5));
+    }
+
     private static class TransferRecorder implements TransferListener {
+        private final int requestType;
         private long startedContentLength;
         private long completedContentLength;
         private int progressEventType;
         private long progressBytes;
 
+        TransferRecorder() {
+            this(TransferEvent.REQUEST_GET);
+        }
+
+        TransferRecorder(int requestType) {
+            this.requestType = requestType;
+        }
+
         @Override
         public void transferInitiated(TransferEvent transferEvent) {
         }
 
         @Override
         public void transferStarted(TransferEvent transferEvent) {
-            if (transferEvent.getRequestType() == TransferEvent.REQUEST_GET) {
+            if (transferEvent.getRequestType() == requestType) {
                 startedContentLength = transferEvent.getResource().getContentLength();
             }
         }
 
         @Override
         public void transferProgress(TransferEvent transferEvent, byte[] buffer, int length) {
-            if (transferEvent.getRequestType() == TransferEvent.REQUEST_GET) {
+            if (transferEvent.getRequestType() == requestType) {
                 progressEventType = transferEvent.getEventType();
                 progressBytes += length;
             }
@@ -173,7 +950,7 @@ public class S3WagonDirectIntegrationTest {
 
         @Override
         public void transferCompleted(TransferEvent transferEvent) {
-            if (transferEvent.getRequestType() == TransferEvent.REQUEST_GET) {
+            if (transferEvent.getRequestType() == requestType) {
                 completedContentLength = transferEvent.getResource().getContentLength();
             }
         }
@@ -0,0 +1,60 @@
+package no.embriq;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WagonMetricsTest {
+
+    @AfterMethod
+    public void tearDown() {
+        System.clearProperty(WagonMetrics.ENABLED_PROPERTY);
+        System.clearProperty(WagonMetrics.SUMMARY_PROPERTY);
+    }
+
+    @Test
+    public void recordsNothingUnlessTheMetricsAreReported() {
+        WagonMetrics.forRepository("s3://unreported").get.succeeded(System.nanoTime(), 100);
+
+        assertThat(WagonMetrics.summary()).doesNotContain("s3://unreported");
+    }
+
+    @Test
+    public void recordsForTheSummary() {
+        System.setProperty(WagonMetrics.SUMMARY_PROPERTY, "true");
+
+        WagonMetrics.forRepository("s3://summarized").get.succeeded(System.nanoTime(), 100);
+
+        assertThat(WagonMetrics.summary()).contains("s3://summarized");
+    }
+
+    @Test
+    public void recordsNothingWhenDisabled() {
+        System.setProperty(WagonMetrics.SUMMARY_PROPERTY, "true");
+        System.setProperty(WagonMetrics.ENABLED_PROPERTY, "false");
+
+        WagonMetrics.forRepository("s3://disabled").get.succeeded(System.nanoTime(), 100);
+
+        assertThat(WagonMetrics.summary()).doesNotContain("s3://disabled");
+    }
+
+    @Test
+    public void countsNoRequestsUnlessTheMetricsAreReported() {
+        WagonMetrics.forBucket("unreported-bucket").retried();
+        WagonMetrics.forBucket("unreported-bucket").throttled();
+
+        System.setProperty(WagonMetrics.SUMMARY_PROPERTY, "true");
+        assertThat(WagonMetrics.summary()).doesNotContain("unreported-bucket");
+    }
+
+    @Test
+    public void countsRequestsForTheSummary() {
+        System.setProperty(WagonMetrics.SUMMARY_PROPERTY, "true");
+
+        WagonMetrics.forBucket("summarized-bucket").retried();
+        WagonMetrics.forBucket("summarized-bucket").throttled();
+
+        assertThat(WagonMetrics.summary()).contains("Requests to bucket summarized-bucket: 1 retried, 1 throttled");
+    }
+}
@@ -0,0 +1,916 @@
+package no.embriq.helpers;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small S3 look-alike running inside the test JVM, so wagon tests don't need Docker.
+ * <p>
+ * It speaks just enough of the S3 REST API for the wagon: object GET (with ranges and conditional headers), HEAD, PUT,
+ * DELETE, multipart uploads and ListObjects (v1 and v2). Objects are kept in memory. Faults can be injected to test how
+ * the wagon copes with a slow or misbehaving S3: added latency, a bandwidth limit, 503 SlowDown responses and
+ * connections reset in the middle of a download.
+ * <p>
+ * Clients must use path-style addressing, which {@link #client()} does.
+ */
+public class LocalS3Server implements AutoCloseable {
+
+    public static final String ACCESS_KEY = "access_key";
+    public static final String SECRET_KEY = "secret_key";
+    public static final String REGION = "us-east-1";
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final int MAX_KEYS = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    // operation -> error to answer all its requests with
+    private final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<>();
+
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile double throttleRate;
+    private final AtomicInteger throttleNext = new AtomicInteger();
+    private final AtomicInteger resetNext = new AtomicInteger();
+    private volatile long resetAfterBytes;
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile double maxRequestRate;
+    private double requestTokens;
+    private long tokensRefilledNanos;
+
+    private LocalS3Server(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "local-s3");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public static LocalS3Server start() throws IOException {
+        return new LocalS3Server(32);
+    }
+
+    public static LocalS3Server start(int threads) throws IOException {
+        return new LocalS3Server(threads);
+    }
+
+    public URI endpoint() {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+    }
+
+    /**
+     * A client configured for this server.
+     */
+    public S3Client client() {
+        return clientBuilder().build();
+    }
+
+    /**
+     * A client builder configured for this server, to configure the client further.
+     */
+    public S3ClientBuilder clientBuilder() {
+        return S3Client.builder()
+                       .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create(ACCESS_KEY, SECRET_KEY)))
+                       .region(Region.of(REGION))
+                       .endpointOverride(endpoint())
+                       .forcePathStyle(true);
+    }
+
+    public void createBucket(String bucket) {
+        buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<>());
+    }
+
+    public void putObject(String bucket, String key, byte[] content) {
+        bucket(bucket).put(key, new StoredObject(content, md5Hex(content), Collections.emptyMap(), Instant.now()));
+    }
+
+    public byte[] getObject(String bucket, String key) {
+        StoredObject object = bucket(bucket).get(key);
+        return object == null ? null : object.content;
+    }
+
+    /**
+     * Adds a fixed delay to every request.
+     */
+    public LocalS3Server latency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Limits how fast each response body is sent. 0 means no limit.
+     */
+    public LocalS3Server bandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Answers a share of all requests, between 0 and 1, with 503 SlowDown.
+     */
+    public LocalS3Server throttleRate(double rate) {
+        this.throttleRate = rate;
+        return this;
+    }
+
+    /**
+     * Answers requests beyond {@code perSecond} requests per second with 503 SlowDown, like S3 does per prefix. Bursts
+     * of a tenth of a second's worth of requests are let through.
+     */
+    public LocalS3Server maxRequestRate(double perSecond) {
+        synchronized (this) {
+            maxRequestRate = perSecond;
+            requestTokens = burst(perSecond);
+            tokensRefilledNanos = System.nanoTime();
+        }
+        return this;
+    }
+
+    /**
+     * Answers the next {@code count} requests with 503 SlowDown.
+     */
+    public LocalS3Server throttleNext(int count) {
+        throttleNext.set(count);
+        return this;
+    }
+
+    /**
+     * Answers every request of a kind, see {@link #requestCount}, with an error, e.g. {@code 403 AccessDenied}.
+     */
+    public LocalS3Server fail(String operation, int status, String code) {
+        failures.put(operation, new Failure(status, code));
+        return this;
+    }
+
+    /**
+     * Drops the connection of the next {@code count} object downloads after {@code afterBytes} bytes of the body.
+     */
+    public LocalS3Server resetNextDownloads(int count, long afterBytes) {
+        this.resetAfterBytes = afterBytes;
+        resetNext.set(count);
+        return this;
+    }
+
+    public LocalS3Server noFaults() {
+        latencyMillis = 0;
+        bytesPerSecond = 0;
+        throttleRate = 0;
+        throttleNext.set(0);
+        resetNext.set(0);
+        maxRequestRate = 0;
+        failures.clear();
+        return this;
+    }
+
+    /**
+     * Number of requests of a kind, e.g. {@code GET}, {@code HEAD}, {@code PUT}, {@code LIST}, {@code UPLOAD_PART}.
+     */
+    public int requestCount(String operation) {
+        AtomicInteger count = requestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public long throttledCount() {
+        return throttled.get();
+    }
+
+    public void resetCounts() {
+        requestCounts.clear();
+        throttled.set(0);
+    }
+
+    public int pendingMultipartUploads() {
+        return uploads.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private NavigableMap<String, StoredObject> bucket(String bucket) {
+        NavigableMap<String, StoredObject> objects = buckets.get(bucket);
+        if (objects == null) {
+            throw new IllegalArgumentException("No such bucket " + bucket);
+        }
+        return objects;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            Request request = new Request(exchange);
+            count(request.operation());
+
+            if (throttleNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0 || (throttleRate > 0 && Math.random() < throttleRate)
+                    || overRequestRate()) {
+                throttled.incrementAndGet();
+                request.drainBody();
+                sendError(exchange, 503, "SlowDown", "Please reduce your request rate.");
+                return;
+            }
+
+            Failure failure = failures.get(request.operation());
+            if (failure != null) {
+                request.drainBody();
+                sendError(exchange, failure.status, failure.code, "Failing all " + request.operation() + " requests.");
+                return;
+            }
+
+            dispatch(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "InternalError", String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized boolean overRequestRate() {
+        if (maxRequestRate <= 0) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        requestTokens = Math.min(burst(maxRequestRate), requestTokens + (now - tokensRefilledNanos) * maxRequestRate / 1e9);
+        tokensRefilledNanos = now;
+
+        if (requestTokens < 1) {
+            return true;
+        }
+        requestTokens--;
+        return false;
+    }
+
+    private static double burst(double perSecond) {
+        return Math.max(1, perSecond / 10);
+    }
+
+    private void count(String operation) {
+        requestCounts.computeIfAbsent(operation, o -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private void dispatch(Request request) throws IOException, InterruptedException {
+        HttpExchange exchange = request.exchange;
+        String method = exchange.getRequestMethod();
+
+        if (request.key.isEmpty()) {
+            if ("PUT".equals(method)) {
+                createBucket(request.bucket);
+                send(exchange, 200, new Headers(), new byte[0]);
+            } else if ("GET".equals(method) && request.query.containsKey("uploads")) {
+                listMultipartUploads(request);
+            } else if ("GET".equals(method)) {
+                listObjects(request);
+            } else if ("HEAD".equals(method)) {
+                send(exchange, buckets.containsKey(request.bucket) ? 200 : 404, new Headers(), null);
+            } else {
+                sendError(exchange, 405, "MethodNotAllowed", method);
+            }
+            return;
+        }
+
+        if (!buckets.containsKey(request.bucket)) {
+            request.drainBody();
+            sendError(exchange, 404, "NoSuchBucket", request.bucket);
+            return;
+        }
+
+        switch (method) {
+            case "PUT":
+                if (request.query.containsKey("uploadId")) {
+                    uploadPart(request);
+                } else {
+                    putObject(request);
+                }
+                break;
+            case "POST":
+                if (request.query.containsKey("uploads")) {
+                    createMultipartUpload(request);
+                } else {
+                    completeMultipartUpload(request);
+                }
+                break;
+            case "DELETE":
+                if (request.query.containsKey("uploadId")) {
+                    uploads.remove(request.query.get("uploadId"));
+                } else {
+                    bucket(request.bucket).remove(request.key);
+                }
+                send(exchange, 204, new Headers(), null);
+                break;
+            case "GET":
+            case "HEAD":
+                getObject(request, "HEAD".equals(method));
+                break;
+            default:
+                sendError(exchange, 405, "MethodNotAllowed", method);
+        }
+    }
+
+    private void putObject(Request request) throws IOException {
+        byte[] content = request.body();
+        StoredObject object = new StoredObject(content, md5Hex(content), metadata(request), Instant.now());
+        bucket(request.bucket).put(request.key, object);
+
+        Headers headers = new Headers();
+        headers.add("ETag", object.quotedETag());
+        send(request.exchange, 200, headers, new byte[0]);
+    }
+
+    private void getObject(Request request, boolean headOnly) throws IOException, InterruptedException {
+        HttpExchange exchange = request.exchange;
+        StoredObject object = bucket(request.bucket).get(request.key);
+
+        if (object == null) {
+            if (headOnly) {
+                send(exchange, 404, new Headers(), null);
+            } else {
+                sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            }
+            return;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String ifMatch = requestHeaders.getFirst("If-Match");
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+        String ifUnmodifiedSince = requestHeaders.getFirst("If-Unmodified-Since");
+
+        if (ifMatch != null && !object.quotedETag().equals(ifMatch) && !"*".equals(ifMatch)) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+        if (ifUnmodifiedSince != null && object.lastModified.isAfter(parseDate(ifUnmodifiedSince))) {
+            sendError(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+        if (ifNoneMatch != null) {
+            if (object.quotedETag().equals(ifNoneMatch) || "*".equals(ifNoneMatch)) {
+                send(exchange, 304, objectHeaders(object), null);
+                return;
+            }
+        } else if (ifModifiedSince != null && !object.lastModified.isAfter(parseDate(ifModifiedSince))) {
+            send(exchange, 304, objectHeaders(object), null);
+            return;
+        }
+
+        Headers headers = objectHeaders(object);
+        byte[] content = object.content;
+        int status = 200;
+        int from = 0;
+        int to = content.length - 1;
+        String range = requestHeaders.getFirst("Range");
+
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            if (bounds[0].isEmpty()) {
+                from = Math.max(0, content.length - Integer.parseInt(bounds[1]));
+            } else {
+                from = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    to = (int) Math.min(to, Long.parseLong(bounds[1]));
+                }
+            }
+
+            if (from >= content.length) {
+                headers.add("Content-Range", "bytes */" + content.length);
+                sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+
+            status = 206;
+            headers.add("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+        }
+
+        int length = to - from + 1;
+        headers.add("Content-Length", String.valueOf(length));
+
+        if (headOnly) {
+            exchange.getResponseHeaders().putAll(headers);
+            sendResponseHeaders(exchange, status, -1);
+            return;
+        }
+
+        long resetAt = resetNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? resetAfterBytes : Long.MAX_VALUE;
+        if (resetAt != Long.MAX_VALUE) {
+            // otherwise the server keeps the connection open after the short body, and the client waits for the rest
+            headers.set("Connection", "close");
+        }
+
+        exchange.getResponseHeaders().putAll(headers);
+        sendResponseHeaders(exchange, status, length == 0 ? -1 : length);
+
+        writeAtBandwidth(exchange.getResponseBody(), content, from, length, resetAt);
+    }
+
+    private Headers objectHeaders(StoredObject object) {
+        Headers headers = new Headers();
+        headers.add("ETag", object.quotedETag());
+        headers.add("Last-Modified", HTTP_DATE.format(ZonedDateTime.ofInstant(object.lastModified, ZoneOffset.UTC)));
+        headers.add("Accept-Ranges", "bytes");
+        headers.add("Content-Type", "application/octet-stream");
+        for (Map.Entry<String, String> entry : object.metadata.entrySet()) {
+            headers.add(entry.getKey(), entry.getValue());
+        }
+        return headers;
+    }
+
+    private void writeAtBandwidth(OutputStream out, byte[] content, int offset, int length, long resetAt) throws IOException,
+                                                                                                          InterruptedException {
+        int chunk = 16 * 1024;
+        long written = 0;
+
+        while (written < length) {
+            int n = (int) Math.min(chunk, length - written);
+
+            if (written + n > resetAt) {
+                out.write(content, (int) (offset + written), (int) (resetAt - written));
+                out.flush();
+                throw new IOException("Injected connection reset");
+            }
+
+            out.write(content, (int) (offset + written), n);
+            written += n;
+
+            long limit = bytesPerSecond;
+            if (limit > 0) {
+                Thread.sleep(Math.max(1, n * 1000L / limit));
+            }
+        }
+    }
+
+    private static Map<String, String> metadata(Request request) {
+        Map<String, String> metadata = new TreeMap<>();
+
+        for (Map.Entry<String, List<String>> header : request.exchange.getRequestHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.startsWith("x-amz-meta-") || name.startsWith("x-amz-checksum-") && !name.equals("x-amz-checksum-algorithm")) {
+                metadata.put(name, header.getValue().get(0));
+            }
+        }
+
+        return metadata;
+    }
+
+    private void createMultipartUpload(Request request) throws IOException {
+        request.drainBody();
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new MultipartUpload(request.bucket, request.key, metadata(request)));
+
+        send(request.exchange, 200, xmlHeaders(), xml("<InitiateMultipartUploadResult>"
+                + element("Bucket", request.bucket) + element("Key", request.key) + element("UploadId", uploadId)
+                + "</InitiateMultipartUploadResult>"));
+    }
+
+    private void uploadPart(Request request) throws IOException {
+        MultipartUpload upload = uploads.get(request.query.get("uploadId"));
+        byte[] content = request.body();
+
+        if (upload == null) {
+            sendError(request.exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        String eTag = md5Hex(content);
+        upload.parts.put(Integer.parseInt(request.query.get("partNumber")), new StoredObject(content, eTag, Collections.emptyMap(), Instant.now()));
+
+        Headers headers = new Headers();
+        headers.add("ETag", "\"" + eTag + "\"");
+        send(request.exchange, 200, headers, new byte[0]);
+    }
+
+    private void completeMultipartUpload(Request request) throws IOException {
+        String uploadId = request.query.get("uploadId");
+        MultipartUpload upload = uploads.get(uploadId);
+        byte[] body = request.body();
+
+        if (upload == null) {
+            sendError(request.exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        NodeList parts = parse(body).getElementsByTagName("Part");
+
+        for (int i = 0; i < parts.getLength(); i++) {
+            Element part = (Element) parts.item(i);
+            int partNumber = Integer.parseInt(part.getElementsByTagName("PartNumber").item(0).getTextContent().trim());
+            StoredObject stored = upload.parts.get(partNumber);
+
+            if (stored == null) {
+                sendError(request.exchange, 400, "InvalidPart", "Part " + partNumber + " was not uploaded");
+                return;
+            }
+
+            content.write(stored.content);
+            partDigests.write(md5(stored.content));
+        }
+
+        uploads.remove(uploadId);
+        String eTag = hex(md5(partDigests.toByteArray())) + "-" + parts.getLength();
+        StoredObject object = new StoredObject(content.toByteArray(), eTag, upload.metadata, Instant.now());
+        bucket(upload.bucket).put(upload.key, object);
+
+        send(request.exchange, 200, xmlHeaders(), xml("<CompleteMultipartUploadResult>"
+                + element("Bucket", upload.bucket) + element("Key", upload.key) + element("ETag", object.quotedETag())
+                + "</CompleteMultipartUploadResult>"));
+    }
+
+    private void listMultipartUploads(Request request) throws IOException {
+        StringBuilder result = new StringBuilder("<ListMultipartUploadsResult>").append(element("Bucket", request.bucket));
+
+        for (Map.Entry<String, MultipartUpload> upload : uploads.entrySet()) {
+            if (upload.getValue().bucket.equals(request.bucket)) {
+                result.append("<Upload>").append(element("Key", upload.getValue().key))
+                      .append(element("UploadId", upload.getKey())).append("</Upload>");
+            }
+        }
+
+        send(request.exchange, 200, xmlHeaders(), xml(result.append("</ListMultipartUploadsResult>").toString()));
+    }
+
+    private void listObjects(Request request) throws IOException {
+        if (!buckets.containsKey(request.bucket)) {
+            sendError(request.exchange, 404, "NoSuchBucket", request.bucket);
+            return;
+        }
+
+        boolean v2 = "2".equals(request.query.get("list-type"));
+        boolean urlEncoded = "url".equals(request.query.get("encoding-type"));
+        String prefix = request.query.getOrDefault("prefix", "");
+        String delimiter = request.query.get("delimiter");
+        int maxKeys = Math.min(MAX_KEYS, Integer.parseInt(request.query.getOrDefault("max-keys", String.valueOf(MAX_KEYS))));
+        String after = v2 ? request.query.getOrDefault("continuation-token", request.query.get("start-after"))
+                          : request.query.get("marker");
+
+        NavigableMap<String, StoredObject> objects = bucket(request.bucket);
+        NavigableMap<String, StoredObject> candidates = after == null ? objects.tailMap(prefix, true) : objects.tailMap(after, false);
+
+        StringBuilder contents = new StringBuilder();
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (count >= maxKeys) {
+                truncated = true;
+                break;
+            }
+
+            if (delimiter != null) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    String commonPrefix = key.substring(0, index + delimiter.length());
+                    if (commonPrefixes.add(commonPrefix)) {
+                        count++;
+                    }
+                    last = key;
+                    continue;
+                }
+            }
+
+            StoredObject object = entry.getValue();
+            contents.append("<Contents>")
+                    .append(element("Key", encode(key, urlEncoded)))
+                    .append(element("LastModified", object.lastModified.truncatedTo(ChronoUnit.MILLIS).toString()))
+                    .append(element("ETag", object.quotedETag()))
+                    .append(element("Size", String.valueOf(object.content.length)))
+                    .append(element("StorageClass", "STANDARD"))
+                    .append("</Contents>");
+            count++;
+            last = key;
+        }
+
+        StringBuilder result = new StringBuilder("<ListBucketResult>")
+                .append(element("Name", request.bucket))
+                .append(element("Prefix", encode(prefix, urlEncoded)))
+                .append(element("MaxKeys", String.valueOf(maxKeys)))
+                .append(element("IsTruncated", String.valueOf(truncated)));
+
+        if (delimiter != null) {
+            result.append(element("Delimiter", encode(delimiter, urlEncoded)));
+        }
+        if (urlEncoded) {
+            result.append(element("EncodingType", "url"));
+        }
+        if (v2) {
+            result.append(element("KeyCount", String.valueOf(count)));
+            if (truncated) {
+                result.append(element("NextContinuationToken", last));
+            }
+        } else if (truncated) {
+            result.append(element("NextMarker", encode(last, urlEncoded)));
+        }
+
+        result.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            result.append("<CommonPrefixes>").append(element("Prefix", encode(commonPrefix, urlEncoded))).append("</CommonPrefixes>");
+        }
+
+        send(request.exchange, 200, xmlHeaders(), xml(result.append("</ListBucketResult>").toString()));
+    }
+
+    private static void send(HttpExchange exchange, int status, Headers headers, byte[] body) throws IOException {
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            body = null;
+        }
+
+        exchange.getResponseHeaders().putAll(headers);
+        sendResponseHeaders(exchange, status, body == null || body.length == 0 ? -1 : body.length);
+
+        if (body != null && body.length > 0) {
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private static void sendResponseHeaders(HttpExchange exchange, int status, long length) throws IOException {
+        if (length < 0) {
+            // a response without a body closes the connection unless the request was read to the end
+            Request.readAll(exchange.getRequestBody());
+        }
+        exchange.sendResponseHeaders(status, length);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        send(exchange, status, xmlHeaders(), xml("<Error>" + element("Code", code) + element("Message", message)
+                + element("RequestId", UUID.randomUUID().toString()) + "</Error>"));
+    }
+
+    private static Headers xmlHeaders() {
+        Headers headers = new Headers();
+        headers.add("Content-Type", "application/xml");
+        return headers;
+    }
+
+    private static byte[] xml(String body) {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String element(String name, String value) {
+        return "<" + name + ">" + value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                                       .replace("\"", "&quot;") + "</" + name + ">";
+    }
+
+    private static String encode(String value, boolean urlEncoded) {
+        if (!urlEncoded) {
+            return value;
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Instant parseDate(String value) {
+        return ZonedDateTime.parse(value, HTTP_DATE).toInstant();
+    }
+
+    private static Document parse(byte[] xml) {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Malformed XML request body", e);
+        }
+    }
+
+    private static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5Hex(byte[] content) {
+        return hex(md5(content));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class StoredObject {
+        private final byte[] content;
+        private final String eTag;
+        private final Map<String, String> metadata;
+        private final Instant lastModified;
+
+        StoredObject(byte[] content, String eTag, Map<String, String> metadata, Instant lastModified) {
+            this.content = content;
+            this.eTag = eTag;
+            this.metadata = metadata;
+            // S3 only keeps whole seconds in Last-Modified
+            this.lastModified = lastModified.truncatedTo(ChronoUnit.SECONDS);
+        }
+
+        String quotedETag() {
+            return "\"" + eTag + "\"";
+        }
+    }
+
+    private static class MultipartUpload {
+        private final String bucket;
+        private final String key;
+        private final Map<String, String> metadata;
+        private final Map<Integer, StoredObject> parts = new ConcurrentHashMap<>();
+
+        MultipartUpload(String bucket, String key, Map<String, String> metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Failure {
+        private final int status;
+        private final String code;
+
+        Failure(int status, String code) {
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    private static class Request {
+        private final HttpExchange exchange;
+        private final String bucket;
+        private final String key;
+        private final Map<String, String> query;
+
+        Request(HttpExchange exchange) {
+            this.exchange = exchange;
+
+            String path = exchange.getRequestURI().getRawPath().substring(1);
+            int slash = path.indexOf('/');
+            this.bucket = decode(slash < 0 ? path : path.substring(0, slash));
+            this.key = slash < 0 ? "" : decode(path.substring(slash + 1));
+            this.query = parseQuery(exchange.getRequestURI().getRawQuery());
+        }
+
+        String operation() {
+            String method = exchange.getRequestMethod();
+            if (key.isEmpty() && "GET".equals(method)) {
+                return query.containsKey("uploads") ? "LIST_UPLOADS" : "LIST";
+            }
+            if ("PUT".equals(method) && query.containsKey("uploadId")) {
+                return "UPLOAD_PART";
+            }
+            if ("POST".equals(method)) {
+                return query.containsKey("uploads") ? "CREATE_MULTIPART" : "COMPLETE_MULTIPART";
+            }
+            return method;
+        }
+
+        byte[] body() throws IOException {
+            byte[] raw = readAll(exchange.getRequestBody());
+            Headers headers = exchange.getRequestHeaders();
+            String sha256 = headers.getFirst("x-amz-content-sha256");
+            String encoding = headers.getFirst("Content-Encoding");
+
+            if ((sha256 != null && sha256.startsWith("STREAMING-")) || (encoding != null && encoding.contains("aws-chunked"))) {
+                return decodeAwsChunked(raw);
+            }
+            return raw;
+        }
+
+        void drainBody() throws IOException {
+            readAll(exchange.getRequestBody());
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * The SDK may send payloads in the aws-chunked encoding: hex size, optional extensions, CRLF, data, CRLF, ending
+         * with a zero sized chunk and optional trailers.
+         */
+        private static byte[] decodeAwsChunked(byte[] raw) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int position = 0;
+
+            while (position < raw.length) {
+                int lineEnd = indexOfCrLf(raw, position);
+                String header = new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII);
+                int size = Integer.parseInt(header.split(";", 2)[0].trim(), 16);
+                position = lineEnd + 2;
+
+                if (size == 0) {
+                    break;
+                }
+
+                out.write(raw, position, size);
+                position += size + 2;
+            }
+
+            return out.toByteArray();
+        }
+
+        private static int indexOfCrLf(byte[] raw, int from) {
+            for (int i = from; i < raw.length - 1; i++) {
+                if (raw[i] == '\r' && raw[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            return raw.length;
+        }
+
+        private static Map<String, String> parseQuery(String rawQuery) {
+            Map<String, String> query = new LinkedHashMap<>();
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return query;
+            }
+            for (String pair : rawQuery.split("&")) {
+                int equals = pair.indexOf('=');
+                query.put(decode(equals < 0 ? pair : pair.substring(0, equals)), equals < 0 ? "" : decode(pair.substring(equals + 1)));
+            }
+            return query;
+        }
+
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}